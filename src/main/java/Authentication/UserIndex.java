@@ -0,0 +1,238 @@
+package Authentication;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Read-only file of accounts, memory-mapped so opening it costs the same whatever its size and lookups
+// don't need the accounts in heap. A header, a hash table of fixed-size slots, then the account records:
+//   header: magic, version, slot count, account count, data length
+//   slot:   record offset (0 = empty), username hash, record length
+// Lookups probe linearly from the username's slot. The header is written last, so a file cut short by a
+// crash is never taken for a complete index
+final class UserIndex {
+    private static final int MAGIC = 0x4C554958; // "LUIX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 16;
+    private static final int MIN_SLOTS = 16;
+    static final int RECORD_HEADER_SIZE = 8; // Length and CRC32 of the record body
+    static final int MAX_RECORD_LENGTH = 256 * 1024;
+
+    private final MappedByteBuffer buffer;
+    private final int slotCount;
+    private final int count;
+    private final long dataEnd;
+
+    private UserIndex(MappedByteBuffer buffer, int slotCount, int count, long dataEnd) {
+        this.buffer = buffer;
+        this.slotCount = slotCount;
+        this.count = count;
+        this.dataEnd = dataEnd;
+    }
+
+    // Maps an index file, checking only its header so this is quick at any size
+    static UserIndex open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid user index size " + size);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size); // Stays valid after close
+            int slotCount = buffer.getInt(8);
+            int count = buffer.getInt(12);
+            long dataLength = buffer.getLong(16);
+            long dataStart = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || slotCount < MIN_SLOTS
+                    || Integer.bitCount(slotCount) != 1 || count < 0 || count >= slotCount
+                    || dataStart + dataLength != size) {
+                throw new IOException("Incomplete or damaged user index");
+            }
+            return new UserIndex(buffer, slotCount, count, size);
+        }
+    }
+
+    // Encrypted password of the account, or null if it isn't in the index
+    String find(String username) {
+        int hash = hash(username);
+        int mask = slotCount - 1;
+        for (int i = hash & mask, probes = 0; probes < slotCount; i = (i + 1) & mask, probes++) {
+            int slot = HEADER_SIZE + i * SLOT_SIZE;
+            long offset = buffer.getLong(slot);
+            if (offset == 0) {
+                return null;
+            }
+            if (buffer.getInt(slot + 8) == hash) {
+                String[] account = readRecord((int) offset, buffer.getInt(slot + 12));
+                if (account != null && account[0].equals(username)) {
+                    return account[1];
+                }
+            }
+        }
+        return null;
+    }
+
+    int size() {
+        return count;
+    }
+
+    // Username and encrypted password of the record at offset, or null if it doesn't check out
+    private String[] readRecord(int offset, int length) {
+        if (length <= RECORD_HEADER_SIZE || offset + (long) length > dataEnd) {
+            return null;
+        }
+        byte[] record = new byte[length];
+        buffer.get(offset, record);
+        return decodeRecord(record, 0, length);
+    }
+
+    // Writes an index to path, which must not exist yet, with the accounts of previous (may be null) and
+    // added. The slot table is built in heap while the records are streamed out, and the header goes in
+    // last once everything else is on disk
+    static void write(Path path, UserIndex previous, Map<String, String> added) throws IOException {
+        int count = (previous != null ? previous.count : 0) + added.size();
+        int slotCount = MIN_SLOTS;
+        while (slotCount < count * 2) {
+            slotCount *= 2; // At most half full, probes stay short
+        }
+        long dataStart = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+        Slots slots = new Slots(slotCount, dataStart);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            channel.position(dataStart);
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+            if (previous != null) {
+                long offset = HEADER_SIZE + (long) previous.slotCount * SLOT_SIZE;
+                while (offset < previous.dataEnd) {
+                    int length = RECORD_HEADER_SIZE + previous.buffer.getInt((int) offset);
+                    String[] account = previous.readRecord((int) offset, length);
+                    if (account == null) {
+                        throw new IOException("User index is damaged at offset " + offset);
+                    }
+                    byte[] record = new byte[length];
+                    previous.buffer.get((int) offset, record);
+                    slots.add(account[0], record, out);
+                    offset += length;
+                }
+            }
+            for (Map.Entry<String, String> account : added.entrySet()) {
+                if (previous == null || previous.find(account.getKey()) == null) {
+                    slots.add(account.getKey(), encodeRecord(account.getKey(), account.getValue()), out);
+                }
+            }
+            out.flush();
+            if (slots.dataEnd > Integer.MAX_VALUE) {
+                throw new IOException("Too many accounts for one user index");
+            }
+            slots.writeTo(channel);
+            channel.force(true);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(slotCount).putInt(slots.count)
+                    .putLong(slots.dataEnd - dataStart).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+    }
+
+    // Slot table of an index being written
+    private static final class Slots {
+        private final long[] offsets;
+        private final int[] hashes;
+        private final int[] lengths;
+        private long dataEnd;
+        private int count;
+
+        Slots(int slotCount, long dataStart) {
+            offsets = new long[slotCount];
+            hashes = new int[slotCount];
+            lengths = new int[slotCount];
+            dataEnd = dataStart;
+        }
+
+        // Writes a record after the previous one and gives it the first free slot from its hash on
+        void add(String username, byte[] record, OutputStream out) throws IOException {
+            out.write(record);
+            int hash = hash(username);
+            int mask = offsets.length - 1;
+            int i = hash & mask;
+            while (offsets[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            offsets[i] = dataEnd;
+            hashes[i] = hash;
+            lengths[i] = record.length;
+            dataEnd += record.length;
+            count++;
+        }
+
+        void writeTo(FileChannel channel) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            long position = HEADER_SIZE;
+            for (int i = 0; i < offsets.length; i++) {
+                buffer.putLong(offsets[i]).putInt(hashes[i]).putInt(lengths[i]);
+                if (!buffer.hasRemaining() || i == offsets.length - 1) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    buffer.clear();
+                }
+            }
+        }
+    }
+
+    // A record: body length, CRC32 of the body, then the username and encrypted password.
+    // The same format is used in the user log
+    static byte[] encodeRecord(String username, String encryptedPassword) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // Filled in below
+        out.writeInt(0);
+        out.writeUTF(username);
+        out.writeUTF(encryptedPassword);
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record, RECORD_HEADER_SIZE, record.length - RECORD_HEADER_SIZE);
+        ByteBuffer.wrap(record).putInt(0, record.length - RECORD_HEADER_SIZE).putInt(4, (int) crc.getValue());
+        return record;
+    }
+
+    // Username and encrypted password of the record at offset, or null if it is cut short or damaged
+    static String[] decodeRecord(byte[] data, int offset, int available) {
+        if (available < RECORD_HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int length = buffer.getInt(offset);
+        if (length <= 0 || length > MAX_RECORD_LENGTH || length > available - RECORD_HEADER_SIZE) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, offset + RECORD_HEADER_SIZE, length);
+        if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset + RECORD_HEADER_SIZE, length));
+            return new String[]{in.readUTF(), in.readUTF()};
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // String.hashCode is fixed by the language spec, so it is the same in every JVM that reads the file.
+    // Mixed so names that differ only at the end don't land in neighbouring slots
+    private static int hash(String username) {
+        int h = username.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -3,66 +3,278 @@ package Authentication;
 import Encryption.EncryptionTool;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
+// Accounts are kept in a memory-mapped index file plus an append-only log of registrations since the index
+// was written. Only the log is held in heap, so startup time and memory stay small however many accounts
+// there are. A registration appends one record to the log, and once the log is long enough it is merged
+// into a new index. Each record carries its length and a checksum, so a crash mid-write only loses the
+// record being written
 public class UserManager {
-    private static final String USER_FILE = "users.dat";
-    private Map<String, String> users; // username -> encrypted password
+    private static final Path LEGACY_FILE = Paths.get("users.dat"); // Serialized map written by older versions
+    private static final Path SNAPSHOT_FILE = Paths.get("users.snapshot"); // Written by the previous log format
+    private static final int SNAPSHOT_MAGIC = 0x4C55534E; // "LUSN"
+    private static final Path LOG_FILE = Paths.get("users.log");
+    private static final String INDEX_PREFIX = "users."; // Index files are users.<generation>.index
+    private static final String INDEX_SUFFIX = ".index";
+    // The log is merged once it holds an eighth of the index, within these bounds, which also bounds startup
+    private static final int MIN_LOG_RECORDS = 1000;
+    private static final int MAX_LOG_RECORDS = 65536;
+
+    private volatile UserIndex index; // Null until the first one is written
+    private volatile Map<String, String> recent = new ConcurrentHashMap<>(); // Accounts in the log, username -> encrypted password
+    private final ReentrantLock writeLock = new ReentrantLock(); // One registration writes at a time, logins never wait
+    private long generation;
+    private FileChannel log;
+    private long logSize; // End of the last complete record
+    private int logRecords;
 
     public UserManager() {
-        users = new HashMap<>();
         loadUsers();
     }
 
-    // Load existing users from file
-    @SuppressWarnings("unchecked")
+    // Maps the newest index and replays the log written since, converting files from older versions first
     private void loadUsers() {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(USER_FILE))) {
-            users = (Map<String, String>) ois.readObject();
-            System.out.println("Loaded " + users.size() + " user accounts");
-        } catch (FileNotFoundException e) {
+        try {
+            openNewestIndex();
+            log = FileChannel.open(LOG_FILE, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            replayLog();
+        } catch (IOException e) {
+            System.out.println("Error loading user data: " + e.getMessage());
+            log = null;
+            return;
+        }
+
+        if (index == null && (Files.exists(SNAPSHOT_FILE) || Files.exists(LEGACY_FILE))) {
+            migrate();
+        } else if (index == null && recent.isEmpty()) {
             System.out.println("No existing user file found. Creating new user database.");
-            saveUsers(); // Create the file
+        } else if (logRecords >= maxLogRecords()) {
+            writeIndex(recent);
+        }
+        System.out.println("Loaded " + countUsers() + " user accounts");
+    }
+
+    // Opens the index with the highest generation that is complete. Older ones, and any a crash left
+    // half written, are deleted
+    private void openNewestIndex() throws IOException {
+        TreeMap<Long, Path> indexes = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get("."), INDEX_PREFIX + "*" + INDEX_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    indexes.put(Long.parseLong(name.substring(INDEX_PREFIX.length(), name.length() - INDEX_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        for (Map.Entry<Long, Path> file : indexes.descendingMap().entrySet()) {
+            if (index == null) {
+                try {
+                    index = UserIndex.open(file.getValue());
+                    generation = file.getKey();
+                    continue;
+                } catch (IOException e) {
+                    System.out.println("Ignoring user index " + file.getValue() + ": " + e.getMessage());
+                }
+            }
+            deleteQuietly(file.getValue());
+        }
+        if (generation == 0 && !indexes.isEmpty()) {
+            generation = indexes.lastKey(); // Don't reuse the name of a damaged one
+        }
+    }
+
+    // Replays the log, cutting off a record a crash left half written so new records follow the last good one.
+    // Records already in the index, from a crash between writing it and emptying the log, are skipped
+    private void replayLog() throws IOException {
+        byte[] data = Files.readAllBytes(LOG_FILE);
+        int offset = 0;
+        String[] account;
+        while ((account = UserIndex.decodeRecord(data, offset, data.length - offset)) != null) {
+            if (index == null || index.find(account[0]) == null) {
+                recent.put(account[0], account[1]);
+            }
+            offset += UserIndex.RECORD_HEADER_SIZE + ByteBuffer.wrap(data).getInt(offset);
+            logRecords++;
+        }
+        logSize = offset;
+        if (logSize < data.length) {
+            System.out.println("Discarding " + (data.length - logSize) + " bytes of an incomplete user record");
+            log.truncate(logSize);
+        }
+        if (logRecords > 0) {
+            System.out.println("Replayed " + logRecords + " user records");
+        }
+    }
+
+    // Moves accounts saved by older versions into the first index: a snapshot of the previous log format,
+    // or a users.dat. The users.dat is left as it is
+    @SuppressWarnings("unchecked")
+    private void migrate() {
+        Path source = Files.exists(SNAPSHOT_FILE) ? SNAPSHOT_FILE : LEGACY_FILE;
+        Map<String, String> accounts = new HashMap<>();
+        try {
+            if (source == SNAPSHOT_FILE) {
+                byte[] data = Files.readAllBytes(SNAPSHOT_FILE);
+                if (data.length < 4 || ByteBuffer.wrap(data).getInt(0) != SNAPSHOT_MAGIC) {
+                    throw new IOException("not a user snapshot");
+                }
+                int offset = 4;
+                String[] account;
+                while ((account = UserIndex.decodeRecord(data, offset, data.length - offset)) != null) {
+                    accounts.put(account[0], account[1]);
+                    offset += UserIndex.RECORD_HEADER_SIZE + ByteBuffer.wrap(data).getInt(offset);
+                }
+            } else {
+                try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(LEGACY_FILE.toFile()))) {
+                    accounts.putAll((Map<String, String>) ois.readObject());
+                }
+            }
         } catch (IOException | ClassNotFoundException e) {
-            System.out.println("Error loading user data");
-            users = new HashMap<>();
-            saveUsers();
+            System.out.println("Error loading user data from " + source + ": " + e.getMessage());
+            return;
+        }
+        accounts.putAll(recent); // Registered since, the log wins
+        if (writeIndex(accounts)) {
+            System.out.println("Migrated " + accounts.size() + " user accounts from " + source);
+            if (source == SNAPSHOT_FILE) {
+                deleteQuietly(SNAPSHOT_FILE);
+            }
         }
     }
 
-    private void saveUsers() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(USER_FILE))) {
-            oos.writeObject(users);
+    // Writes the next index generation with the current index and the given accounts, then switches lookups
+    // to it and empties the log. Until the new index is complete the old one and the log stay as they are
+    private boolean writeIndex(Map<String, String> added) {
+        Path path = indexPath(generation + 1);
+        UserIndex previous = index;
+        try {
+            deleteQuietly(path);
+            UserIndex.write(path, previous, added);
+            index = UserIndex.open(path);
+            recent = new ConcurrentHashMap<>(); // After the index, so a lookup always finds an account in one of them
+            generation++;
+            log.truncate(0);
+            log.force(true);
+            logSize = 0;
+            logRecords = 0;
         } catch (IOException e) {
-            System.out.println("Error saving user data");
+            System.out.println("Error writing user index: " + e.getMessage()); // The log still has everything
+            return false;
+        }
+        if (previous != null) {
+            deleteQuietly(indexPath(generation - 1)); // May fail while still mapped on Windows, removed on the next start
         }
+        return true;
+    }
+
+    private static Path indexPath(long generation) {
+        return Paths.get(INDEX_PREFIX + generation + INDEX_SUFFIX);
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // Tried again on the next start
+        }
+    }
+
+    private int maxLogRecords() {
+        int indexed = index != null ? index.size() : 0;
+        return Math.max(MIN_LOG_RECORDS, Math.min(indexed / 8, MAX_LOG_RECORDS));
+    }
+
+    private int countUsers() {
+        return (index != null ? index.size() : 0) + recent.size();
+    }
+
+    // Encrypted password of the account, or null if there is no such user
+    private String findPassword(String username) {
+        String password = recent.get(username);
+        if (password == null) {
+            UserIndex current = index;
+            if (current != null) {
+                password = current.find(username);
+            }
+        }
+        return password;
+    }
+
+    // Appends one record and waits for it to reach the disk. A failed write is cut off again,
+    // so the next record doesn't end up behind a broken one
+    private void append(byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        try {
+            while (buffer.hasRemaining()) {
+                log.write(buffer, logSize + buffer.position());
+            }
+            log.force(false);
+        } catch (IOException e) {
+            try {
+                log.truncate(logSize);
+            } catch (IOException ignored) {
+                // Replaying the log stops at the broken record anyway
+            }
+            throw e;
+        }
+        logSize += record.length;
+        logRecords++;
     }
 
     public boolean registerUser(String username, String password) {
-        if (users.containsKey(username)) {
+        if (findPassword(username) != null) {
             return false; // Username already exists
         }
 
+        String encryptedPassword;
         try {
             // Encrypt the password before storing
-            String encryptedPassword = EncryptionTool.encrypt(password);
-            users.put(username, encryptedPassword);
-            saveUsers();
-            return true;
+            encryptedPassword = EncryptionTool.encrypt(password);
         } catch (Exception e) {
             System.out.println("Error encrypting password");
             return false;
         }
+
+        writeLock.lock();
+        try {
+            if (log == null || findPassword(username) != null) {
+                return false; // User data couldn't be loaded, or someone registered the name meanwhile
+            }
+            append(UserIndex.encodeRecord(username, encryptedPassword));
+            recent.put(username, encryptedPassword);
+            if (logRecords >= maxLogRecords()) {
+                writeIndex(recent);
+            }
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error saving user data: " + e.getMessage());
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
     }
 
     public boolean authenticateUser(String username, String password) {
-        if (!users.containsKey(username)) {
+        String storedEncryptedPassword = findPassword(username);
+        if (storedEncryptedPassword == null) {
             return false; // User doesn't exist
         }
 
         try {
-            String storedEncryptedPassword = users.get(username);
             String decryptedStoredPassword = EncryptionTool.decrypt(storedEncryptedPassword);
             return decryptedStoredPassword.equals(password);
         } catch (Exception e) {
@@ -0,0 +1,141 @@
+package Benchmark;
+
+import Encryption.EncryptionTool;
+import FileTransfer.FileTransfer;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+// Compares allocation and CPU per message for the old String crypto path and the pooled byte/ByteBuffer paths
+// Usage: java Benchmark.CryptoBenchmark [iterations]
+public class CryptoBenchmark {
+    private static final String CHAT_MESSAGE = "[12:34:56] alice: Are we still meeting at the library later?";
+    private static final int WARMUP_ITERATIONS = 20000;
+
+    // Measured code does one encrypt and one decrypt per call
+    private interface RoundTrip {
+        void run() throws Exception;
+    }
+
+    private static com.sun.management.ThreadMXBean threads;
+    private static long sink; // Keeps results alive so the JIT can't drop the work
+
+    public static void main(String[] args) throws Exception {
+        int iterations = 100000; // Default
+        if (args.length >= 1) {
+            iterations = Integer.parseInt(args[0]);
+        }
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        SecretKeySpec key = new SecretKeySpec(Base64.getDecoder().decode(EncryptionTool.getKeyAsString()), "AES");
+
+        byte[] chat = CHAT_MESSAGE.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] chunk = new byte[FileTransfer.CHUNK_SIZE];
+        new Random(42).nextBytes(chunk);
+        byte[] chunkMessage = withChunkHeader(chunk);
+
+        // Caller-owned buffers, allocated once
+        byte[] encrypted = new byte[EncryptionTool.encryptedSize(chunkMessage.length)];
+        byte[] decrypted = new byte[encrypted.length];
+        ByteBuffer directIn = ByteBuffer.allocateDirect(chunkMessage.length);
+        ByteBuffer directEncrypted = ByteBuffer.allocateDirect(encrypted.length);
+        ByteBuffer directOut = ByteBuffer.allocateDirect(encrypted.length);
+
+        System.out.println(String.format("%-34s %14s %14s", "chat message (" + chat.length + " bytes)", "bytes/op", "CPU ns/op"));
+        measure("old String API", iterations, () -> {
+            String line = legacyEncrypt(key, CHAT_MESSAGE);
+            sink += legacyDecrypt(key, line).length();
+        });
+        measure("pooled String API", iterations, () -> {
+            String line = EncryptionTool.encrypt(CHAT_MESSAGE);
+            sink += EncryptionTool.decrypt(line).length();
+        });
+        measure("byte[] into caller buffer", iterations, () -> {
+            int length = EncryptionTool.encrypt(chat, 0, chat.length, encrypted, 0);
+            sink += EncryptionTool.decrypt(encrypted, 0, length, decrypted, 0);
+        });
+        measure("direct ByteBuffer", iterations, () -> {
+            directRoundTrip(chat, directIn, directEncrypted, directOut);
+        });
+
+        int chunkIterations = Math.max(1, iterations / 100);
+        System.out.println();
+        System.out.println(String.format("%-34s %14s %14s", "file chunk (" + chunk.length + " bytes)", "bytes/op", "CPU ns/op"));
+        measure("old Base64 + String API", chunkIterations, () -> {
+            // What FileTransfer used to do: Base64 the chunk, then encrypt and Base64 the whole message again
+            String message = FileTransfer.createFileChunkHeader(0, 1) + Base64.getEncoder().encodeToString(chunk);
+            String line = legacyEncrypt(key, message);
+            String received = legacyDecrypt(key, line);
+            sink += Base64.getDecoder().decode(received.substring(received.lastIndexOf(':') + 1)).length;
+        });
+        measure("single Base64 line", chunkIterations, () -> {
+            String line = EncryptionTool.encryptToString(chunkMessage, 0, chunkMessage.length);
+            sink += EncryptionTool.decryptFromString(line, decrypted, 0);
+        });
+        measure("byte[] into caller buffer", chunkIterations, () -> {
+            int length = EncryptionTool.encrypt(chunkMessage, 0, chunkMessage.length, encrypted, 0);
+            sink += EncryptionTool.decrypt(encrypted, 0, length, decrypted, 0);
+        });
+        measure("direct ByteBuffer", chunkIterations, () -> {
+            directRoundTrip(chunkMessage, directIn, directEncrypted, directOut);
+        });
+
+        if (sink == 42) {
+            System.out.println(); // Never happens, just uses the sink
+        }
+    }
+
+    // Warms up, then reports allocated bytes and CPU time per call for this thread
+    private static void measure(String name, int iterations, RoundTrip roundTrip) throws Exception {
+        for (int i = 0; i < Math.min(WARMUP_ITERATIONS, iterations); i++) {
+            roundTrip.run();
+        }
+
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long cpuBefore = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < iterations; i++) {
+            roundTrip.run();
+        }
+        long cpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+        System.out.println(String.format("%-34s %14d %14d", name, allocated / iterations, cpu / iterations));
+    }
+
+    private static void directRoundTrip(byte[] message, ByteBuffer in, ByteBuffer encrypted, ByteBuffer out) throws Exception {
+        in.clear();
+        in.put(message).flip();
+        encrypted.clear();
+        EncryptionTool.encrypt(in, encrypted);
+        encrypted.flip();
+        out.clear();
+        sink += EncryptionTool.decrypt(encrypted, out);
+    }
+
+    private static byte[] withChunkHeader(byte[] chunk) {
+        byte[] header = FileTransfer.createFileChunkHeader(0, 1).getBytes(StandardCharsets.ISO_8859_1);
+        byte[] message = new byte[header.length + chunk.length];
+        System.arraycopy(header, 0, message, 0, header.length);
+        System.arraycopy(chunk, 0, message, header.length, chunk.length);
+        return message;
+    }
+
+    // The String API as it was before the ciphers were pooled, kept here as the baseline
+    private static String legacyEncrypt(SecretKeySpec key, String message) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        byte[] encryptedBytes = cipher.doFinal(message.getBytes());
+        return Base64.getEncoder().encodeToString(encryptedBytes);
+    }
+
+    private static String legacyDecrypt(SecretKeySpec key, String encryptedMessage) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.DECRYPT_MODE, key);
+        byte[] decryptedBytes = cipher.doFinal(Base64.getDecoder().decode(encryptedMessage));
+        return new String(decryptedBytes);
+    }
+}
@@ -0,0 +1,219 @@
+package Benchmark;
+
+import Authentication.UserManager;
+import Encryption.EncryptionTool;
+import Server.Server;
+import Server.ServerConfig;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Compares the server's platform-thread and virtual-thread modes (and NIO for reference) with many idle clients connected
+// Usage: java Benchmark.ThreadModeBenchmark [connections] [base port]
+public class ThreadModeBenchmark {
+    private static final String HOST = "localhost";
+    private static final String BENCH_USER = "bench_user";
+    private static final String BENCH_PASSWORD = "bench_password";
+    private static final int HANDSHAKE_THREADS = 64;
+    private static final int BROADCAST_ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int connections = 10000; // Default
+        int basePort = 1160; // Default
+        if (args.length >= 1) {
+            connections = Integer.parseInt(args[0]);
+        }
+        if (args.length >= 2) {
+            basePort = Integer.parseInt(args[1]);
+        }
+
+        // Make sure the shared benchmark account exists before any handler loads the user file
+        new UserManager().registerUser(BENCH_USER, BENCH_PASSWORD);
+
+        PrintStream console = System.out;
+        String[] modes = {Server.MODE_BLOCKING, Server.MODE_VIRTUAL, Server.MODE_NIO};
+        List<String> results = new ArrayList<>();
+        for (int i = 0; i < modes.length; i++) {
+            if (modes[i].equals(Server.MODE_VIRTUAL) && !Server.supportsVirtualThreads()) {
+                console.println("Skipping virtual mode, it needs Java 21");
+                continue;
+            }
+            console.println("Running " + modes[i] + " mode with " + connections + " connections...");
+            // Server logs a few lines per connection, keep them out of the results
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            try {
+                results.add(run(modes[i], connections, basePort + i));
+            } finally {
+                System.setOut(console);
+            }
+        }
+
+        console.println();
+        console.println(String.format("%-10s %12s %14s %14s %12s %12s",
+                "mode", "connect ms", "broadcast ms", "JVM threads", "heap MB", "RSS MB"));
+        for (String result : results) {
+            console.println(result);
+        }
+        System.exit(0);
+    }
+
+    private static String run(String mode, int connections, int port) throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setMode(mode);
+        config.setMaxConnections(connections + 1);
+        config.setAuthAttemptsPerMinute(0); // Every benchmark client logs in from this one address
+        Server server = new Server(HOST, port, config);
+        server.start();
+        Thread.sleep(500); // Let the server bind
+
+        List<SocketChannel> channels = new ArrayList<>();
+        try {
+            // Connect and log everyone in, a bounded pool keeps the client side cheap
+            long start = System.nanoTime();
+            ExecutorService pool = Executors.newFixedThreadPool(HANDSHAKE_THREADS);
+            AtomicInteger failures = new AtomicInteger();
+            for (int i = 0; i < connections; i++) {
+                pool.submit(() -> {
+                    try {
+                        SocketChannel channel = handshake(port);
+                        synchronized (channels) {
+                            channels.add(channel);
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                });
+            }
+            pool.shutdown();
+            pool.awaitTermination(10, TimeUnit.MINUTES);
+            long connectMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (failures.get() > 0) {
+                System.err.println(mode + ": " + failures.get() + " connections failed");
+            }
+
+            // Idle footprint with everyone connected
+            System.gc();
+            Thread.sleep(500);
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            long heapMb = (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / (1024 * 1024);
+            String rssMb = readRssMb();
+
+            // Fan one message out to everyone else and time until the last copy arrives
+            long broadcastNanos = 0;
+            for (int round = 0; round < BROADCAST_ROUNDS; round++) {
+                broadcastNanos += timeBroadcast(channels);
+            }
+            long broadcastMs = TimeUnit.NANOSECONDS.toMillis(broadcastNanos / BROADCAST_ROUNDS);
+
+            return String.format("%-10s %12d %14d %14d %12d %12s",
+                    mode, connectMs, broadcastMs, threads, heapMb, rssMb);
+        } finally {
+            for (SocketChannel channel : channels) {
+                channel.close();
+            }
+            server.shutdown();
+            Thread.sleep(1000); // Let handler threads notice the closed sockets
+        }
+    }
+
+    // Connects one client, reads the key and logs in, then leaves the channel open
+    private static SocketChannel handshake(int port) throws Exception {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(HOST, port));
+        Socket socket = channel.socket();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+
+        String key = reader.readLine();
+        EncryptionTool.setKeyFromString(key);
+        writer.println(EncryptionTool.encrypt("AUTH_LOGIN:" + BENCH_USER + ":" + BENCH_PASSWORD));
+        String response = EncryptionTool.decrypt(reader.readLine());
+        if (!response.equals("AUTH_SUCCESS")) {
+            channel.close();
+            throw new IOException("Login failed");
+        }
+        // Nothing else is sent until the broadcast, so the reader holds no buffered data
+        return channel;
+    }
+
+    // Sends one chat line from the first client and waits until every other client has received it
+    private static long timeBroadcast(List<SocketChannel> channels) throws Exception {
+        Selector selector = Selector.open();
+        for (int i = 1; i < channels.size(); i++) {
+            SocketChannel channel = channels.get(i);
+            if (channel.isBlocking()) {
+                channel.configureBlocking(false);
+            }
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        byte[] line = (EncryptionTool.encrypt("[00:00:00] bench: ping") + System.lineSeparator()).getBytes();
+        SocketChannel sender = channels.get(0);
+        long start = System.nanoTime();
+        if (sender.isBlocking()) {
+            sender.socket().getOutputStream().write(line);
+        } else {
+            ByteBuffer out = ByteBuffer.wrap(line);
+            while (out.hasRemaining()) {
+                sender.write(out);
+            }
+        }
+
+        int remaining = channels.size() - 1;
+        while (remaining > 0) {
+            if (selector.select(10000) == 0) {
+                System.err.println("Timed out with " + remaining + " clients still waiting");
+                break;
+            }
+            for (SelectionKey key : selector.selectedKeys()) {
+                buffer.clear();
+                SocketChannel channel = (SocketChannel) key.channel();
+                int read = channel.read(buffer);
+                // Every message ends with a newline, so seeing one means the copy has arrived
+                for (int i = 0; i < buffer.position(); i++) {
+                    if (buffer.get(i) == '\n') {
+                        key.cancel();
+                        remaining--;
+                        break;
+                    }
+                }
+                if (read < 0 && key.isValid()) {
+                    key.cancel();
+                    remaining--;
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+        long elapsed = System.nanoTime() - start;
+        selector.close();
+        return elapsed;
+    }
+
+    private static String readRssMb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    long kb = Long.parseLong(line.replaceAll("[^0-9]", ""));
+                    return String.valueOf(kb / 1024);
+                }
+            }
+        } catch (Exception e) {
+            // Not on Linux
+        }
+        return "n/a";
+    }
+}
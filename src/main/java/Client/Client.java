@@ -2,6 +2,10 @@ package Client;
 
 import Encryption.EncryptionTool;
 import FileTransfer.FileTransfer;
+import Protocol.Compression;
+import Protocol.Frame;
+import Protocol.Messages;
+import Protocol.Protocol;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import javax.swing.*;
@@ -13,11 +17,19 @@ import java.net.InetSocketAddress;
 import java.util.*;
 
 
-public class Client implements FileTransfer.FileTransferCallback {
+public class Client implements FileTransfer.FileTransferCallback, ReceiveThread.Listener {
+    private static final int MAX_LINE_LENGTH = 64 * 1024; // Handshake lines are short
+    private static final int MAX_RECONNECT_ATTEMPTS = 8;
+    private static final long FIRST_RECONNECT_DELAY_MILLIS = 500; // Doubled after each failed attempt
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 30000;
+    private static final int RESUME_TIMEOUT_MILLIS = 10000; // For connecting and each handshake step
+
+    private String host;
+    private int port;
     private Socket socket;
     private String name;
-    private PrintWriter writer;
-    private BufferedReader reader;
+    private DataOutputStream output;
+    private DataInputStream input;
     private JList<String> messages;
     private ReceiveThread receiveThread; // Handles incoming messages
     private DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("[HH:mm:ss]");
@@ -25,8 +37,15 @@ public class Client implements FileTransfer.FileTransferCallback {
     private Map<String, JButton> fileViewButtons = new HashMap<>();
     private DefaultListModel<String> listModel;
     private NotificationSound notificationSound; 
+    private Compression compression = new Compression(false); // Chat and chunk deflating, set up by negotiateProtocol
+    private volatile byte[] sessionToken; // Latest token from the server, null until logged in
+    private final MessageSequence sequence = new MessageSequence(); // Chat received so far, for acks and skipping repeats
+    private volatile boolean closing; // User quit, a closed connection is expected
+    private volatile boolean roomsSupported; // Server speaks a version with rooms
 
     public Client(String host, int port) {
+        this.host = host;
+        this.port = port;
         try {
             // Initialize notification sound
             notificationSound = new NotificationSound();
@@ -37,13 +56,13 @@ public class Client implements FileTransfer.FileTransferCallback {
             socket.connect(new InetSocketAddress(host, port));
             System.out.println("Successfully connected to " + host + ":" + port);
 
-            writer = new PrintWriter(socket.getOutputStream(), true);
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream())); // Receives data
+            output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream())); // Receives data
             
             fileTransfer = new FileTransfer(this);
             
-            // Check server status
-            String serverMessage = reader.readLine();
+            // Check server status, the handshake is plain text lines
+            String serverMessage = readLine();
             
             if (serverMessage.startsWith("SERVER_FULL:")) {
                 // Show message and exit
@@ -57,7 +76,7 @@ public class Client implements FileTransfer.FileTransferCallback {
                 JOptionPane.showMessageDialog(null, waitingMessage, "Waiting for Server", JOptionPane.INFORMATION_MESSAGE);
                 
                 // Create and show a waiting dialogue
-                JDialog waitDialogue = new JDialog((Frame)null, "Waiting in Queue", true);
+                JDialog waitDialogue = new JDialog((java.awt.Frame) null, "Waiting in Queue", true);
                 waitDialogue.setLayout(new BorderLayout());
                 JLabel waitLabel = new JLabel("Waiting for a spot on the server...", JLabel.CENTER);
                 JButton cancelButton = new JButton("Cancel");
@@ -76,19 +95,33 @@ public class Client implements FileTransfer.FileTransferCallback {
                 waitDialogue.setSize(300, 150);
                 waitDialogue.setLocationRelativeTo(null);
                 
-                // Start a thread to wait for server response
+                // Start a thread to wait for server response, the server sends queue updates until a slot is free
                 new Thread(() -> {
                     try {
-                        String response = reader.readLine();
-                        if (response.startsWith("SERVER_CONNECTED:")) {
-                        
-                            SwingUtilities.invokeLater(() -> waitDialogue.dispose());
-                            
-                            // Play notification sound when connected
-                            notificationSound.playNotificationSound();
-                            
-                            // Wait for the encryption key in next message 
+                        String response;
+                        while ((response = readLine()) != null) {
+                            if (response.startsWith("SERVER_CONNECTED:")) {
+
+                                SwingUtilities.invokeLater(() -> waitDialogue.dispose());
+
+                                // Play notification sound when connected
+                                notificationSound.playNotificationSound();
+
+                                // Wait for the encryption key in next message
+                                return;
+                            } else if (response.startsWith("SERVER_WAITING:")) {
+                                // Position and estimated wait
+                                String update = response.substring("SERVER_WAITING:".length());
+                                SwingUtilities.invokeLater(() -> waitLabel.setText("<html><center>" + update + "</center></html>"));
+                            } else if (response.startsWith("SERVER_FULL:")) {
+                                // Timed out in the queue
+                                String errorMessage = response.substring("SERVER_FULL:".length());
+                                JOptionPane.showMessageDialog(null, errorMessage, "Server Full", JOptionPane.ERROR_MESSAGE);
+                                System.exit(1);
+                            }
                         }
+                        System.err.println("Server closed the connection while waiting");
+                        System.exit(1);
                     } catch (IOException e) {
                         e.printStackTrace();
                         System.exit(1);
@@ -96,13 +129,14 @@ public class Client implements FileTransfer.FileTransferCallback {
                 }).start();
                 
                 waitDialogue.setVisible(true);
-                serverMessage = reader.readLine();
+                serverMessage = readLine();
             }
             
             // serverMessage now contains the encryption key
             System.out.println("Setting encryption key...");
             EncryptionTool.setKeyFromString(serverMessage);
 
+            negotiateProtocol();
             handleAuthentication();
             
             System.out.println("\nWelcome, " + name + "! Getting ready to send and receive messages...");
@@ -110,7 +144,7 @@ public class Client implements FileTransfer.FileTransferCallback {
             // Sends encrypted join message with timestamp
             String timestamp = LocalDateTime.now().format(timeFormatter);
             String joinMessage = timestamp + " Server: " + name + " has joined the chat. Say hi!";
-            writer.println(EncryptionTool.encrypt(joinMessage));
+            sendFrame(Messages.chat(joinMessage, compression));
             
         } catch (Exception e) {
             System.err.println("Connection error: " + e.getMessage());
@@ -119,6 +153,50 @@ public class Client implements FileTransfer.FileTransferCallback {
         }
     }
     
+    private String readLine() throws IOException {
+        return Protocol.readLine(input, MAX_LINE_LENGTH);
+    }
+
+    // Asks the server for binary frames, everything after this is a frame
+    private void negotiateProtocol() throws IOException {
+        output.write((Protocol.createHello() + System.lineSeparator()).getBytes());
+        output.flush();
+        String reply = readLine();
+        int version = reply == null ? -1 : Protocol.parseVersion(reply, Protocol.HELLO_OK);
+        if (version < 1) {
+            throw new IOException("Server does not support the binary protocol: " + reply);
+        }
+        compression.close();
+        compression = new Compression(version >= Protocol.COMPRESSION_VERSION);
+        fileTransfer.setCompression(compression);
+        roomsSupported = version >= Protocol.ROOMS_VERSION;
+    }
+
+    // Writes one frame, the chat window and file sender share the connection
+    private synchronized void sendFrame(Frame frame) throws IOException {
+        frame.writeTo(output);
+        output.flush();
+    }
+
+    // Waits for the server's reply to a login or registration. Returns true if it succeeded, otherwise
+    // tells the user why not: failureMessage, or that the server is busy
+    private boolean readAuthResult(String failureMessage) throws IOException {
+        Frame response = Frame.readFrom(input);
+        if (response == null) {
+            throw new IOException("Server closed the connection");
+        }
+        if (response.getType() == Protocol.AUTH_RETRY) {
+            JOptionPane.showMessageDialog(null, "The server is busy, please try again in "
+                    + Messages.readRetrySeconds(response) + " seconds");
+            return false;
+        }
+        if (response.getType() != Protocol.AUTH_SUCCESS) {
+            JOptionPane.showMessageDialog(null, failureMessage);
+            return false;
+        }
+        return true;
+    }
+
     // Handles login/register
     private void handleAuthentication() throws Exception {
         // Creates GUI for login/register
@@ -169,18 +247,15 @@ public class Client implements FileTransfer.FileTransferCallback {
             }
             
             // Send login request 
-            writer.println(EncryptionTool.encrypt("AUTH_LOGIN:" + username + ":" + password));
+            sendFrame(Messages.authRequest(Protocol.AUTH_LOGIN, username, password));
             
             // Wait for server response
-            String response = EncryptionTool.decrypt(reader.readLine());
-            if (response.equals("AUTH_SUCCESS")) {
+            if (readAuthResult("Invalid username or password")) {
                 authenticated = true;
                 name = username;
                 JOptionPane.showMessageDialog(null, "Login successful!");
                 // Play notification sound on successful login
                 notificationSound.playNotificationSound();
-            } else {
-                JOptionPane.showMessageDialog(null, "Invalid username or password");
             }
         }
     }
@@ -221,36 +296,45 @@ public class Client implements FileTransfer.FileTransferCallback {
             }
             
             // Send registration request to server
-            writer.println(EncryptionTool.encrypt("AUTH_REGISTER:" + username + ":" + password));
+            sendFrame(Messages.authRequest(Protocol.AUTH_REGISTER, username, password));
             
             // Wait for server response
-            String response = EncryptionTool.decrypt(reader.readLine());
-            if (response.equals("AUTH_SUCCESS")) {
+            if (readAuthResult("Username already exists")) {
                 registered = true;
                 name = username;
                 JOptionPane.showMessageDialog(null, "Registration successful!");
                 // Play notification sound on successful registration
                 notificationSound.playNotificationSound();
-            } else {
-                JOptionPane.showMessageDialog(null, "Username already exists");
             }
         }
     }
 
-    // Method to send messages, if client types "QUIT" then it closes the socket
+    // Method to send messages, if client types "QUIT" then it closes the socket.
+    // "/join <room>" moves to another room and "/leave" goes back to the lobby
     public void sendMessage(String message) {
         try {
-            if (message.equals("QUIT")) {
+            if (message.startsWith("/join ") || message.equals("/leave")) {
+                if (!roomsSupported) {
+                    showStatus("This server has no rooms");
+                } else if (message.equals("/leave")) {
+                    sendFrame(Messages.roomLeave());
+                } else {
+                    sendFrame(Messages.roomJoin(message.substring("/join ".length()).trim()));
+                }
+            } else if (message.equals("QUIT")) {
                 String timestamp = LocalDateTime.now().format(timeFormatter);
                 String exitMessage = timestamp + " Server: " + name + " has left the chat.";
-                writer.println(EncryptionTool.encrypt(exitMessage));
+                sendFrame(Messages.chat(exitMessage, compression));
+                System.out.println("Compression: " + compression.describe());
+                closing = true;
+                receiveThread.stopRunning();
                 socket.close();
+                compression.close();
                 System.exit(0);
             } else {
                 String timestamp = LocalDateTime.now().format(timeFormatter);
                 String fullMessage = timestamp + " " + name + ": " + message;
-                String encryptedMessage = EncryptionTool.encrypt(fullMessage);
-                writer.println(encryptedMessage);
+                sendFrame(Messages.chat(fullMessage, compression));
             }
         } catch (Exception e) {
             System.err.println("Error encrypting message: " + e.getMessage());
@@ -261,8 +345,12 @@ public class Client implements FileTransfer.FileTransferCallback {
     private FileTransfer.SendCallback createSendCallback() {
         return new FileTransfer.SendCallback() {
             @Override
-            public void send(String message) {
-                writer.println(message);
+            public void send(Frame message) {
+                try {
+                    sendFrame(message);
+                } catch (IOException e) {
+                    System.err.println("Error sending file data: " + e.getMessage());
+                }
             }
         };
     }
@@ -364,12 +452,140 @@ public class Client implements FileTransfer.FileTransferCallback {
         fileButton.addActionListener(e -> sendFile());
 
         // Start receive thread
-        receiveThread = new ReceiveThread(reader, messages, fileTransfer, notificationSound);
+        receiveThread = new ReceiveThread(input, messages, fileTransfer, createSendCallback(), notificationSound, this, sequence);
         receiveThread.start();
 
         frame.setVisible(true);
     }
     
+    @Override
+    public void sessionTokenReceived(byte[] token) {
+        sessionToken = token;
+    }
+
+    // Runs on the receive thread that lost the connection. Logs back in with the session token, waiting
+    // longer after each failed attempt, with some jitter so clients dropped together don't all come back at once
+    @Override
+    public void connectionLost() {
+        if (closing) {
+            return;
+        }
+        showStatus("Connection to the server lost, reconnecting...");
+        long delay = FIRST_RECONNECT_DELAY_MILLIS;
+        for (int attempt = 1; attempt <= MAX_RECONNECT_ATTEMPTS && !closing; attempt++) {
+            try {
+                Thread.sleep(delay + (long) (Math.random() * delay / 2));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            byte[] token = sessionToken;
+            if (token == null) {
+                break; // Never got one, a new login is needed
+            }
+            try {
+                if (resumeSession(token)) {
+                    showStatus("Reconnected");
+                    return;
+                }
+                synchronized (this) {
+                    compression.close();
+                }
+                showStatus("The server did not accept the saved session, please restart the client to log in again");
+                return;
+            } catch (Exception e) {
+                System.err.println("Reconnect attempt " + attempt + " failed: " + e.getMessage());
+            }
+            delay = Math.min(delay * 2, MAX_RECONNECT_DELAY_MILLIS);
+        }
+        if (!closing) {
+            synchronized (this) {
+                compression.close();
+            }
+            showStatus("Could not reconnect to the server, please restart the client");
+        }
+    }
+
+    // Opens a new connection and logs in with the token instead of a password. Returns false if the server
+    // rejected the token, throws if the server couldn't be reached. On success the new connection replaces
+    // the old one and a new receive thread is started
+    private boolean resumeSession(byte[] token) throws Exception {
+        Socket newSocket = new Socket();
+        try {
+            newSocket.connect(new InetSocketAddress(host, port), RESUME_TIMEOUT_MILLIS);
+            newSocket.setSoTimeout(RESUME_TIMEOUT_MILLIS);
+            DataOutputStream newOutput = new DataOutputStream(new BufferedOutputStream(newSocket.getOutputStream()));
+            DataInputStream newInput = new DataInputStream(new BufferedInputStream(newSocket.getInputStream()));
+
+            // Queue updates may come before the key, the user already chose to wait once
+            String line;
+            while ((line = Protocol.readLine(newInput, MAX_LINE_LENGTH)) != null
+                    && (line.startsWith("SERVER_WAITING:") || line.startsWith("SERVER_CONNECTED:"))) {
+                newSocket.setSoTimeout(0); // Waiting in the queue can take longer than a handshake step
+            }
+            if (line == null || line.startsWith("SERVER_FULL:")) {
+                throw new IOException(line == null ? "Server closed the connection" : line);
+            }
+            newSocket.setSoTimeout(RESUME_TIMEOUT_MILLIS);
+            EncryptionTool.setKeyFromString(line);
+
+            // Hello and token go out together, one round trip instead of two. The server sends again
+            // every chat and notice after the last one received
+            newOutput.write((Protocol.createHello() + System.lineSeparator()).getBytes());
+            Messages.authResume(token, sequence.getLast()).writeTo(newOutput);
+            newOutput.flush();
+            String reply = Protocol.readLine(newInput, MAX_LINE_LENGTH);
+            int version = reply == null ? -1 : Protocol.parseVersion(reply, Protocol.HELLO_OK);
+            if (version < 1) {
+                throw new IOException("Server does not support the binary protocol: " + reply);
+            }
+            Frame result = Frame.readFrom(newInput);
+            if (result == null) {
+                throw new IOException("Server closed the connection");
+            }
+            if (result.getType() == Protocol.AUTH_RETRY) {
+                throw new IOException("Server busy");
+            }
+            if (result.getType() != Protocol.AUTH_SUCCESS) {
+                newSocket.close();
+                return false;
+            }
+            newSocket.setSoTimeout(0);
+
+            Compression newCompression = new Compression(version >= Protocol.COMPRESSION_VERSION);
+            synchronized (this) { // Same lock as sendFrame, nothing is written half to each connection
+                Socket oldSocket = socket;
+                socket = newSocket;
+                output = newOutput;
+                input = newInput;
+                compression.close();
+                compression = newCompression;
+                fileTransfer.setCompression(newCompression);
+                roomsSupported = version >= Protocol.ROOMS_VERSION;
+                try {
+                    oldSocket.close();
+                } catch (IOException e) {
+                    // Already gone
+                }
+            }
+            receiveThread = new ReceiveThread(newInput, messages, fileTransfer, createSendCallback(), notificationSound, this, sequence);
+            receiveThread.start();
+            return true;
+        } catch (Exception e) {
+            newSocket.close();
+            throw e;
+        }
+    }
+
+    // Shows a line from the client itself in the chat window
+    private void showStatus(String text) {
+        String line = LocalDateTime.now().format(timeFormatter) + " " + text;
+        SwingUtilities.invokeLater(() -> {
+            listModel.addElement(line);
+            messages.ensureIndexIsVisible(listModel.getSize() - 1);
+        });
+    }
+
     @Override
     public void onTransferComplete(String fileName, File file) {
         SwingUtilities.invokeLater(() -> {
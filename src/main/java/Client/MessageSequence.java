@@ -0,0 +1,59 @@
+package Client;
+
+// Counts the chat and notices received from the server, across reconnects. The server numbers them
+// without sending the numbers: a SEQUENCE frame gives the number of the next one and each one after
+// that is one more. Anything at or below the last number seen is a repeat and is skipped
+public class MessageSequence {
+    private long sessionId;
+    private long next; // Number the next chat or notice will have
+    private long last; // Highest number shown
+    private long acked; // Highest number the server has been told about
+    private boolean started; // Older servers never send SEQUENCE, then nothing is counted
+
+    // Numbering (re)starts at next. Returns how many messages were lost on the way, -1 if it is a new
+    // session after an old one the server had forgotten, so it isn't known how many
+    public synchronized long start(long sessionId, long next) {
+        long missed = 0;
+        if (started && sessionId != this.sessionId) {
+            missed = -1;
+            last = next - 1;
+            acked = last;
+        } else if (!started) {
+            last = next - 1;
+            acked = last;
+        } else if (next > last + 1) {
+            missed = next - last - 1;
+            last = next - 1;
+        }
+        this.sessionId = sessionId;
+        this.next = next;
+        started = true;
+        return missed;
+    }
+
+    // Counts one chat or notice, returns false if it has been shown already
+    public synchronized boolean accept() {
+        if (!started) {
+            return true;
+        }
+        long number = next++;
+        if (number <= last) {
+            return false;
+        }
+        last = number;
+        return true;
+    }
+
+    // Number to acknowledge, or -1 if the server already knows
+    public synchronized long takeAck() {
+        if (!started || last <= acked) {
+            return -1;
+        }
+        acked = last;
+        return last;
+    }
+
+    public synchronized long getLast() {
+        return last;
+    }
+}
@@ -1,53 +1,87 @@
 package Client;
 
-import Encryption.EncryptionTool;
 import FileTransfer.FileTransfer;
+import Protocol.Frame;
+import Protocol.Messages;
+import Protocol.Protocol;
 
-import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import javax.swing.DefaultListModel;
 import javax.swing.JList;
 import javax.swing.SwingUtilities;
 
 public class ReceiveThread extends Thread {
-    private BufferedReader reader; // To store incoming messages
+    // Told about what the client itself has to act on
+    public interface Listener {
+        void sessionTokenReceived(byte[] token); // A fresh token to log back in with
+        void connectionLost(); // The server went away without us stopping the thread
+    }
+
+    private DataInputStream input; // To read incoming frames
     private JList<String> messages; // To display messages in GUI
     private boolean running = true;
     private FileTransfer fileTransfer;
+    private FileTransfer.SendCallback replies; // For FILE_RESUME answers to the server
     private NotificationSound notificationSound; 
+    private Listener listener;
+    private MessageSequence sequence; // Shared with the threads of earlier connections
+    private byte[] receiveBuffer = new byte[1024]; // Decrypted messages land here, grown as needed
 
-    public ReceiveThread(BufferedReader reader, JList<String> messages, FileTransfer fileTransfer, 
-                         NotificationSound notificationSound) {
-        this.reader = reader;
+    public ReceiveThread(DataInputStream input, JList<String> messages, FileTransfer fileTransfer, 
+                         FileTransfer.SendCallback replies, NotificationSound notificationSound, Listener listener,
+                         MessageSequence sequence) {
+        this.input = input;
         this.messages = messages;
         this.fileTransfer = fileTransfer;
+        this.replies = replies;
         this.notificationSound = notificationSound;
+        this.listener = listener;
+        this.sequence = sequence;
     }
 
     @Override
     public void run() {
         try {
-            String encryptedMessage;
+            Frame frame;
             // Continuous loop while there are messages to be read and the server is running
-            while (running && (encryptedMessage = reader.readLine()) != null) {
+            while (running && (frame = Frame.readFrom(input)) != null) {
                 try {
-                    final String decryptedMessage = EncryptionTool.decrypt(encryptedMessage);
+                    if (receiveBuffer.length < frame.getBodyCapacity()) {
+                        receiveBuffer = new byte[frame.getBodyCapacity()];
+                    }
+                    int length = frame.open(receiveBuffer);
                     
                     // Check if this is a file transfer message
-                    if (decryptedMessage.startsWith(FileTransfer.FILE_START) || 
-                        decryptedMessage.startsWith(FileTransfer.FILE_CHUNK) || 
-                        decryptedMessage.startsWith(FileTransfer.FILE_END) || 
-                        decryptedMessage.startsWith(FileTransfer.FILE_ERROR)) {
-                        
-                        // Handle file transfer message
-                        fileTransfer.processFileMessage(decryptedMessage);
+                    if (Protocol.isFileMessage(frame.getType())) {
+                        // Handle file transfer message, chunks stay as raw bytes
+                        fileTransfer.processFileMessage(frame, receiveBuffer, length, replies);
                         
                         // Play notification sound for file transfer start
-                        if (decryptedMessage.startsWith(FileTransfer.FILE_START)) {
+                        if (frame.getType() == Protocol.FILE_START) {
                             notificationSound.playNotificationSound();
                         }
-                    } else {
-                        // Normal chat message
+                    } else if (frame.getType() == Protocol.FILE_ACK) {
+                        // The server relayed one of our chunks, so the sender can go on
+                        fileTransfer.chunkAcknowledged(Messages.readTransferId(frame));
+                    } else if (frame.getType() == Protocol.FILE_RESUME) {
+                        // Which chunks of our upload the receivers already have
+                        fileTransfer.resumeReceived(Messages.readTransferId(frame), Messages.readChunkBitmap(frame));
+                    } else if (frame.getType() == Protocol.SESSION_TOKEN) {
+                        listener.sessionTokenReceived(Arrays.copyOf(receiveBuffer, length));
+                    } else if (frame.getType() == Protocol.SEQUENCE) {
+                        long missed = sequence.start(Messages.readSessionId(frame), Messages.readSequence(frame));
+                        if (missed != 0) {
+                            showLine(missed < 0 ? "Some messages may have been missed while disconnected"
+                                    : missed + " messages were missed while disconnected");
+                        }
+                    } else if (Protocol.isSequenced(frame.getType()) && !sequence.accept()) {
+                        // Sent again after a reconnect, already shown
+                    } else if (frame.getType() == Protocol.CHAT || frame.getType() == Protocol.NOTICE) {
+                        // Normal chat message, or a server notice which isn't encrypted
+                        final String decryptedMessage = frame.getType() == Protocol.NOTICE
+                                ? Messages.readNotice(frame) : Messages.readText(receiveBuffer, length);
                         SwingUtilities.invokeLater(() -> { 
                             DefaultListModel<String> model = (DefaultListModel<String>) messages.getModel();
                             model.addElement(decryptedMessage);
@@ -62,14 +96,33 @@ public class ReceiveThread extends Thread {
                 } catch (Exception e) {
                     System.err.println("Error decrypting message: " + e.getMessage());
                 }
+
+                // One cumulative ack once everything that arrived together has been handled
+                if (input.available() == 0) {
+                    long ack = sequence.takeAck();
+                    if (ack >= 0) {
+                        replies.send(Messages.messageAck(ack));
+                    }
+                }
             }
         } catch (IOException e) {
             if (running) {
                 System.err.println("Error receiving message: " + e.getMessage());
             }
         }
+        if (running) {
+            listener.connectionLost();
+        }
     }
     
+    private void showLine(String text) {
+        SwingUtilities.invokeLater(() -> {
+            DefaultListModel<String> model = (DefaultListModel<String>) messages.getModel();
+            model.addElement(text);
+            messages.ensureIndexIsVisible(model.getSize() - 1);
+        });
+    }
+
     public void stopRunning() {
         running = false;
     }
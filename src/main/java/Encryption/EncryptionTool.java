@@ -1,16 +1,99 @@
 package Encryption;
 
+import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class EncryptionTool {
     private static final String ALGORITHM = "AES"; // Advanced Encryption Standard algorithm
-    private static SecretKey secretKey; 
+    private static volatile SecretKey secretKey; 
     private static final String KEY_FILE = "server_key.dat"; // File to store the key
+    private static final String ENGINE_TRANSFORMATION = "AES/ECB/NoPadding"; // Same cipher as ALGORITHM, padded by hand
+    private static final int BLOCK_SIZE = 16; // AES block size in bytes
+    private static final int SCRATCH_SIZE = 1024;
+    private static final int MAX_POOLED_ENGINES = 64; // Idle engines kept for reuse
+    private static final int MAX_POOLED_SCRATCH = 256 * 1024; // Bigger scratch buffers are not kept in the pool
+
+    // Fixed slots rather than a queue, so taking and returning an engine allocates nothing
+    private static final AtomicReferenceArray<CipherEngine> enginePool = new AtomicReferenceArray<>(MAX_POOLED_ENGINES);
+
+    // Initialised ciphers plus scratch buffers, only ever used by one thread at a time
+    private static final class CipherEngine {
+        // Padding is added and checked here, so the bytes match the default "AES" transformation
+        // but doFinal never has to copy the input
+        private final Cipher encryptCipher;
+        private final Cipher decryptCipher;
+        private final byte[] lastBlock = new byte[BLOCK_SIZE];
+        private SecretKey key; // Key the ciphers were initialised with
+        private byte[] encryptedScratch = new byte[SCRATCH_SIZE];
+        private byte[] plainScratch = new byte[SCRATCH_SIZE];
+
+        CipherEngine() throws Exception {
+            encryptCipher = Cipher.getInstance(ENGINE_TRANSFORMATION);
+            decryptCipher = Cipher.getInstance(ENGINE_TRANSFORMATION);
+        }
+
+        // Re-initialises the ciphers if the key has changed since they were last used
+        void useKey(SecretKey current) throws Exception {
+            if (key != current) {
+                encryptCipher.init(Cipher.ENCRYPT_MODE, current);
+                decryptCipher.init(Cipher.DECRYPT_MODE, current);
+                key = current;
+            }
+        }
+
+        int encrypt(byte[] input, int offset, int length, byte[] output, int outputOffset) throws Exception {
+            int fullBlocks = length - length % BLOCK_SIZE;
+            int written = encryptCipher.update(input, offset, fullBlocks, output, outputOffset);
+
+            // PKCS5 padding on the last block
+            int remaining = length - fullBlocks;
+            System.arraycopy(input, offset + fullBlocks, lastBlock, 0, remaining);
+            Arrays.fill(lastBlock, remaining, BLOCK_SIZE, (byte) (BLOCK_SIZE - remaining));
+            return written + encryptCipher.doFinal(lastBlock, 0, BLOCK_SIZE, output, outputOffset + written);
+        }
+
+        int decrypt(byte[] input, int offset, int length, byte[] output, int outputOffset) throws Exception {
+            if (length == 0 || length % BLOCK_SIZE != 0) {
+                throw new IllegalBlockSizeException("Encrypted data must be a multiple of " + BLOCK_SIZE + " bytes");
+            }
+            int written = decryptCipher.doFinal(input, offset, length, output, outputOffset);
+
+            int padding = output[outputOffset + written - 1];
+            if (padding < 1 || padding > BLOCK_SIZE) {
+                throw new BadPaddingException("Invalid padding");
+            }
+            for (int i = written - padding; i < written; i++) {
+                if (output[outputOffset + i] != padding) {
+                    throw new BadPaddingException("Invalid padding");
+                }
+            }
+            return written - padding;
+        }
+
+        byte[] encryptedScratch(int size) {
+            if (encryptedScratch.length < size) {
+                encryptedScratch = new byte[Math.max(size, encryptedScratch.length * 2)];
+            }
+            return encryptedScratch;
+        }
+
+        byte[] plainScratch(int size) {
+            if (plainScratch.length < size) {
+                plainScratch = new byte[Math.max(size, plainScratch.length * 2)];
+            }
+            return plainScratch;
+        }
+    }
     
     static {
         try {
@@ -53,17 +136,145 @@ public class EncryptionTool {
     }
     
     public static String encrypt(String message) throws Exception {
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-        byte[] encryptedBytes = cipher.doFinal(message.getBytes());
-        return Base64.getEncoder().encodeToString(encryptedBytes);
+        byte[] messageBytes = message.getBytes();
+        return encryptToString(messageBytes, 0, messageBytes.length);
     }
     
     public static String decrypt(String encryptedMessage) throws Exception {
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
-        cipher.init(Cipher.DECRYPT_MODE, secretKey);
-        byte[] decryptedBytes = cipher.doFinal(Base64.getDecoder().decode(encryptedMessage));
-        return new String(decryptedBytes);
+        CipherEngine engine = acquireEngine();
+        byte[] plain = engine.plainScratch(encryptedMessage.length());
+        int length = decryptFromString(engine, encryptedMessage, plain, 0);
+        String message = new String(plain, 0, length);
+        releaseEngine(engine);
+        return message;
+    }
+
+    // Size of the ciphertext for a message of the given length, use it to size output buffers
+    public static int encryptedSize(int plainLength) {
+        return (plainLength / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
+    // Encrypts into the caller's array and returns the number of bytes written, the arrays must not overlap
+    public static int encrypt(byte[] input, int offset, int length, byte[] output, int outputOffset) throws Exception {
+        CipherEngine engine = acquireEngine();
+        int written = engine.encrypt(input, offset, length, output, outputOffset);
+        releaseEngine(engine);
+        return written;
+    }
+
+    // Decrypts into the caller's array and returns the number of bytes written, output needs room for length bytes
+    public static int decrypt(byte[] input, int offset, int length, byte[] output, int outputOffset) throws Exception {
+        CipherEngine engine = acquireEngine();
+        int written = engine.decrypt(input, offset, length, output, outputOffset);
+        releaseEngine(engine);
+        return written;
+    }
+
+    // Encrypts the input's remaining bytes into the output buffer and advances both positions
+    public static int encrypt(ByteBuffer input, ByteBuffer output) throws Exception {
+        CipherEngine engine = acquireEngine();
+        int length = input.remaining();
+        int written;
+        if (input.hasArray() && output.hasArray()) {
+            written = engine.encrypt(input.array(), input.arrayOffset() + input.position(), length,
+                    output.array(), output.arrayOffset() + output.position());
+        } else {
+            // Direct buffers go through the scratch arrays, the JDK would allocate temporary ones otherwise
+            byte[] plain = engine.plainScratch(length);
+            byte[] encrypted = engine.encryptedScratch(encryptedSize(length));
+            input.get(input.position(), plain, 0, length);
+            written = engine.encrypt(plain, 0, length, encrypted, 0);
+            output.put(output.position(), encrypted, 0, written);
+        }
+        input.position(input.position() + length);
+        output.position(output.position() + written);
+        releaseEngine(engine);
+        return written;
+    }
+
+    public static int decrypt(ByteBuffer input, ByteBuffer output) throws Exception {
+        CipherEngine engine = acquireEngine();
+        int length = input.remaining();
+        int written;
+        if (input.hasArray() && output.hasArray()) {
+            written = engine.decrypt(input.array(), input.arrayOffset() + input.position(), length,
+                    output.array(), output.arrayOffset() + output.position());
+        } else {
+            byte[] encrypted = engine.encryptedScratch(length);
+            byte[] plain = engine.plainScratch(length);
+            input.get(input.position(), encrypted, 0, length);
+            written = engine.decrypt(encrypted, 0, length, plain, 0);
+            output.put(output.position(), plain, 0, written);
+        }
+        input.position(input.position() + length);
+        output.position(output.position() + written);
+        releaseEngine(engine);
+        return written;
+    }
+
+    // Encrypts raw bytes straight into a text line, so binary data doesn't need its own Base64 step first
+    public static String encryptToString(byte[] input, int offset, int length) throws Exception {
+        CipherEngine engine = acquireEngine();
+        byte[] encrypted = engine.encryptedScratch(encryptedSize(length));
+        int written = engine.encrypt(input, offset, length, encrypted, 0);
+        ByteBuffer encoded = Base64.getEncoder().encode(ByteBuffer.wrap(encrypted, 0, written));
+        releaseEngine(engine);
+        return new String(encoded.array(), 0, encoded.limit(), StandardCharsets.ISO_8859_1);
+    }
+
+    // Decrypts a text line into the caller's array and returns the number of bytes written,
+    // output needs room for encryptedMessage.length() bytes
+    public static int decryptFromString(String encryptedMessage, byte[] output, int outputOffset) throws Exception {
+        CipherEngine engine = acquireEngine();
+        int written = decryptFromString(engine, encryptedMessage, output, outputOffset);
+        releaseEngine(engine);
+        return written;
+    }
+
+    private static int decryptFromString(CipherEngine engine, String encryptedMessage, byte[] output, int outputOffset) throws Exception {
+        byte[] encrypted = engine.encryptedScratch(encryptedMessage.length());
+        int encryptedLength = Base64.getDecoder().decode(encryptedMessage.getBytes(StandardCharsets.ISO_8859_1), encrypted);
+        return engine.decrypt(encrypted, 0, encryptedLength, output, outputOffset);
+    }
+
+    // Takes an idle engine from the pool, or makes one if they are all in use
+    private static CipherEngine acquireEngine() throws Exception {
+        int start = poolStart();
+        CipherEngine engine = null;
+        for (int i = 0; i < MAX_POOLED_ENGINES && engine == null; i++) {
+            int slot = (start + i) % MAX_POOLED_ENGINES;
+            if (enginePool.get(slot) != null) {
+                engine = enginePool.getAndSet(slot, null);
+            }
+        }
+        if (engine == null) {
+            engine = new CipherEngine();
+        }
+        engine.useKey(secretKey);
+        return engine;
+    }
+
+    // Engines are only returned after a successful call, one that threw is simply dropped
+    private static void releaseEngine(CipherEngine engine) {
+        if (engine.encryptedScratch.length > MAX_POOLED_SCRATCH) {
+            engine.encryptedScratch = new byte[SCRATCH_SIZE];
+        }
+        if (engine.plainScratch.length > MAX_POOLED_SCRATCH) {
+            engine.plainScratch = new byte[SCRATCH_SIZE];
+        }
+        int start = poolStart();
+        for (int i = 0; i < MAX_POOLED_ENGINES; i++) {
+            int slot = (start + i) % MAX_POOLED_ENGINES;
+            if (enginePool.get(slot) == null && enginePool.compareAndSet(slot, null, engine)) {
+                return;
+            }
+        }
+        // Pool is full, let this one go
+    }
+
+    // Threads start looking at different slots so they don't all fight over the first one
+    private static int poolStart() {
+        return (System.identityHashCode(Thread.currentThread()) & Integer.MAX_VALUE) % MAX_POOLED_ENGINES;
     }
     
     // Method to get the current key for sharing with clients
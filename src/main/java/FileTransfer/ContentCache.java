@@ -0,0 +1,103 @@
+package FileTransfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+// Files this client already has, looked up by the SHA-256 of their content. Only remembers where the
+// files are, and forgets the least recently used ones once the total size or count is over the limit
+public class ContentCache {
+    private static final int MAX_ENTRIES = 256;
+    private static final long MAX_BYTES = 512L * 1024 * 1024;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // Least recently used first
+    private long totalBytes;
+
+    private static class Entry {
+        final Path path;
+        final long size;
+        final FileTime lastModified; // A file changed since it was added no longer has that content
+
+        Entry(Path path, long size, FileTime lastModified) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    // Remembers that path holds the content with this hash
+    public synchronized void put(byte[] contentHash, Path path) {
+        Entry entry;
+        try {
+            entry = new Entry(path, Files.size(path), Files.getLastModifiedTime(path));
+        } catch (IOException e) {
+            return;
+        }
+        Entry previous = entries.put(key(contentHash), entry);
+        if (previous != null) {
+            totalBytes -= previous.size;
+        }
+        totalBytes += entry.size;
+
+        Iterator<Entry> oldest = entries.values().iterator();
+        while ((entries.size() > MAX_ENTRIES || totalBytes > MAX_BYTES) && oldest.hasNext()) {
+            totalBytes -= oldest.next().size;
+            oldest.remove();
+        }
+    }
+
+    // A file with this content and size, or null if there isn't one or it has changed since
+    public synchronized Path find(byte[] contentHash, long size) {
+        if (contentHash == null) {
+            return null;
+        }
+        String key = key(contentHash);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            if (entry.size == size && Files.size(entry.path) == size
+                    && Files.getLastModifiedTime(entry.path).equals(entry.lastModified)) {
+                return entry.path;
+            }
+        } catch (IOException e) {
+            // Gone, forget it below
+        }
+        entries.remove(key);
+        totalBytes -= entry.size;
+        return null;
+    }
+
+    // SHA-256 of everything in the channel, read through the given buffer
+    public static byte[] hash(FileChannel channel, ByteBuffer buffer) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        long position = 0;
+        buffer.clear();
+        int read;
+        while ((read = channel.read(buffer, position)) > 0) {
+            position += read;
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+        return digest.digest();
+    }
+
+    private static String key(byte[] contentHash) {
+        return HexFormat.of().formatHex(contentHash);
+    }
+}
@@ -1,21 +1,35 @@
 package FileTransfer;
 
-import Encryption.EncryptionTool;
+import Protocol.Compression;
+import Protocol.Frame;
+import Protocol.Messages;
+import Protocol.Protocol;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Base64;
-import java.util.HashMap;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
 import java.util.Map;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class FileTransfer {
-    // Protocol constants
+    // Message names on the old line protocol, still used to convert for text clients
     public static final String FILE_START = "FILE_START";
     public static final String FILE_CHUNK = "FILE_CHUNK";
     public static final String FILE_END = "FILE_END";
@@ -24,19 +38,65 @@ public class FileTransfer {
     // Configuration
     private static final Set<String> ALLOWED_EXTENSIONS = new HashSet<>(
             Arrays.asList(".docx", ".pdf", ".jpeg", ".jpg"));
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(
+            Arrays.asList(".jpeg", ".jpg")); // Deflate can't shrink these, so it isn't tried
+    private static final int INCOMPRESSIBLE_CHUNKS = 4; // Chunks in a row that didn't shrink before an upload stops trying
     private static final long MAX_FILE_SIZE = 10 * 1024 * 1024; // 10MB
     public static final int CHUNK_SIZE = 64 * 1024; // 64KB
+    private static final int SEND_WINDOW = 8; // Chunks of one upload that can be sent before the server has acked them
+    private static final long ACK_TIMEOUT_SECONDS = 30;
+    private static final long RESUME_TIMEOUT_SECONDS = 5; // Longest wait to hear which chunks receivers already have
+    private static final int CHECKPOINT_INTERVAL = 16; // Chunks written between saves of the received bitmap
     private static final String DOWNLOAD_DIR = "downloads";
+    private static final String PARTIAL_SUFFIX = ".part"; // Downloads are written here and renamed once complete
+    private static final String CHECKPOINT_SUFFIX = ".chunks"; // Saved bitmap of the chunks in the partial file
+    private static final byte[] FILE_CHUNK_PREFIX = (FILE_CHUNK + ":").getBytes(StandardCharsets.ISO_8859_1);
     
-    // Transfer state tracking 
-    private final Map<String, Long> fileSizes = new HashMap<>();
-    private final Map<String, Map<Integer, byte[]>> fileChunks = new HashMap<>();
-    private final Map<String, Integer> totalChunksMap = new HashMap<>();
-    private final Set<String> completedFiles = new HashSet<>();
+    // Transfer state tracking by transfer ID, each transfer has its own state object
+    private final Map<Long, IncomingFile> incomingFiles = new ConcurrentHashMap<>();
+    private final Map<Long, Semaphore> sendCredits = new ConcurrentHashMap<>(); // Credits of each upload in progress
+    private final Map<Long, CompletableFuture<BitSet>> resumeReplies = new ConcurrentHashMap<>(); // Uploads waiting for FILE_RESUME
+    
+    private volatile Compression compression = new Compression(false); // Replaced once the connection has negotiated
+    private final ContentCache contentCache = new ContentCache(); // Files sent or received, so the same content isn't downloaded twice
     
     private final ExecutorService transferExecutor = Executors.newFixedThreadPool(2);
     private final FileTransferCallback callback;
 
+    // A download in progress, chunks go straight into the preallocated partial file.
+    // Methods that touch the file lock the object, so a shutdown can't close it under a write
+    private static class IncomingFile {
+        final String fileName;
+        final long fileSize;
+        final byte[] contentHash; // Null if the sender didn't give one
+        final int totalChunks;
+        final Path partialPath;
+        final Path checkpointPath;
+        final FileChannel channel;
+        final BitSet received; // Chunks already written, repeats are ignored
+        int uncheckpointed; // Chunks written since the bitmap was last saved
+
+        IncomingFile(String fileName, long fileSize, byte[] contentHash, Path partialPath, Path checkpointPath,
+                FileChannel channel, BitSet received) {
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.contentHash = contentHash;
+            this.totalChunks = (int) ((fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            this.partialPath = partialPath;
+            this.checkpointPath = checkpointPath;
+            this.channel = channel;
+            this.received = received;
+        }
+
+        boolean isComplete() {
+            return received.cardinality() == totalChunks;
+        }
+
+        int progress() {
+            return totalChunks == 0 ? 100 : (int) ((received.cardinality() * 100.0) / totalChunks);
+        }
+    }
+
     public interface FileTransferCallback {
         void onTransferProgress(String fileName, int progress);
         void onTransferComplete(String fileName, File file);
@@ -44,7 +104,7 @@ public class FileTransfer {
     }
     
     public interface SendCallback {
-        void send(String message);
+        void send(Frame message);
     }
     
     public FileTransfer(FileTransferCallback callback) {
@@ -57,6 +117,11 @@ public class FileTransfer {
         }
     }
     
+    // Chunks sent from now on are deflated where that helps, if the connection negotiated it
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+    
     public static boolean isValidFile(File file) {
         if (!file.exists() || !file.isFile()) {
             return false;
@@ -93,8 +158,22 @@ public class FileTransfer {
         return FILE_START + ":" + fileName + ":" + fileSize;
     }
     
-    public static String createFileChunkMessage(int chunkIndex, int totalChunks, String data) {
-        return FILE_CHUNK + ":" + chunkIndex + ":" + totalChunks + ":" + data;
+    // Text chunk messages are this header followed by the raw chunk bytes, encrypted together
+    public static String createFileChunkHeader(int chunkIndex, int totalChunks) {
+        return FILE_CHUNK + ":" + chunkIndex + ":" + totalChunks + ":";
+    }
+
+    // Checks if a decrypted text message is a chunk, which has to stay binary
+    public static boolean isFileChunk(byte[] message, int length) {
+        if (length < FILE_CHUNK_PREFIX.length) {
+            return false;
+        }
+        for (int i = 0; i < FILE_CHUNK_PREFIX.length; i++) {
+            if (message[i] != FILE_CHUNK_PREFIX[i]) {
+                return false;
+            }
+        }
+        return true;
     }
     
     public static String createFileEndMessage(String fileName) {
@@ -105,6 +184,7 @@ public class FileTransfer {
         return FILE_ERROR + ":" + errorMessage;
     }
     
+    // Streams the file a chunk at a time, only as fast as the server acks the chunks
     public void sendFile(File file, SendCallback sendCallback) {
         if (!isValidFile(file)) {
             callback.onTransferError(file.getName(), "Invalid file type or size");
@@ -112,178 +192,377 @@ public class FileTransfer {
         }
         
         transferExecutor.submit(() -> {
-            try {
-                String startMessage = createFileStartMessage(file.getName(), file.length());
-                sendCallback.send(EncryptionTool.encrypt(startMessage));
+            long transferId = 0;
+            Semaphore credits = null;
+            boolean started = false;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long fileSize = channel.size();
+                int totalChunks = (int) ((fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+                ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE); // Reused for every chunk
+                
+                // The ID comes from the content, so the same file sent again, even under another name
+                // or by someone else, is recognised by the server and receivers that already have it
+                byte[] contentHash = ContentCache.hash(channel, chunk);
+                transferId = ByteBuffer.wrap(contentHash).getLong();
+                Semaphore ownCredits = new Semaphore(SEND_WINDOW);
+                if (sendCredits.putIfAbsent(transferId, ownCredits) != null) {
+                    callback.onTransferError(file.getName(), "File is already being sent");
+                    return;
+                }
+                credits = ownCredits;
+                CompletableFuture<BitSet> resume = new CompletableFuture<>();
+                resumeReplies.put(transferId, resume);
+                contentCache.put(contentHash, file.toPath());
+                Compression compression = this.compression;
+                boolean compress = !COMPRESSED_EXTENSIONS.contains(getFileExtension(file.getName()));
+                int incompressible = 0;
                 
-                // Read file and send in chunks
-                byte[] fileData = Files.readAllBytes(file.toPath());
-                int totalChunks = (int) Math.ceil((double) fileData.length / CHUNK_SIZE);
+                sendCallback.send(Messages.fileStart(transferId, contentHash, file.getName(), fileSize));
+                started = true;
+                
+                // Chunks the server or every receiver already has are skipped, if that is all of them
+                // nothing but the end message is sent
+                BitSet skip;
+                try {
+                    skip = resume.get(RESUME_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (TimeoutException e) {
+                    skip = new BitSet();
+                } finally {
+                    resumeReplies.remove(transferId);
+                }
                 
                 for (int i = 0; i < totalChunks; i++) {
-                    int start = i * CHUNK_SIZE;
-                    int end = Math.min(start + CHUNK_SIZE, fileData.length);
-                    byte[] chunk = new byte[end - start];
-                    System.arraycopy(fileData, start, chunk, 0, chunk.length);
+                    if (skip.get(i)) {
+                        continue;
+                    }
+                    chunk.clear();
+                    long position = (long) i * CHUNK_SIZE;
+                    while (chunk.hasRemaining() && channel.read(chunk, position + chunk.position()) > 0) {
+                        // Keep reading until the chunk is full or the file ends
+                    }
                     
-                    String encodedChunk = Base64.getEncoder().encodeToString(chunk);
-                    String chunkMessage = createFileChunkMessage(i, totalChunks, encodedChunk);
-                    sendCallback.send(EncryptionTool.encrypt(chunkMessage));
+                    // Wait for the server to make room before sending more
+                    if (!credits.tryAcquire(ACK_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                        throw new IOException("Server stopped acknowledging chunks");
+                    }
+                    Frame frame = Messages.fileChunk(transferId, i, totalChunks, chunk.array(), 0, chunk.position(), compression, compress);
+                    if (compress && compression.isEnabled()) {
+                        // Already compressed content inside other formats is only found by trying
+                        incompressible = frame.isCompressed() ? 0 : incompressible + 1;
+                        compress = incompressible < INCOMPRESSIBLE_CHUNKS;
+                    }
+                    sendCallback.send(frame);
                     
                     // Report progress
                     int progress = (int) ((i + 1) * 100.0 / totalChunks);
                     callback.onTransferProgress(file.getName(), progress);
-                    
-                    // Small delay to prevent overwhelming the network
-                    Thread.sleep(100);
                 }
                 
-                String endMessage = createFileEndMessage(file.getName());
-                sendCallback.send(EncryptionTool.encrypt(endMessage));
+                sendCallback.send(Messages.fileEnd(transferId, file.getName()));
                 
                 callback.onTransferComplete(file.getName(), file);
                 
             } catch (Exception e) {
+                if (started) {
+                    // Lets the receivers throw away what they have so far
+                    try {
+                        sendCallback.send(Messages.fileError(transferId, "Sender cancelled " + file.getName()));
+                    } catch (Exception ignored) {
+                        // The connection is probably gone, receivers clean up when they disconnect
+                    }
+                }
                 callback.onTransferError(file.getName(), "Error sending file: " + e.getMessage());
+            } finally {
+                if (credits != null) {
+                    sendCredits.remove(transferId);
+                    resumeReplies.remove(transferId);
+                }
             }
         });
     }
     
-    public void processFileMessage(String message) {
+    // Called for FILE_RESUME, the chunks every receiver already has
+    public void resumeReceived(long transferId, BitSet received) {
+        CompletableFuture<BitSet> resume = resumeReplies.get(transferId);
+        if (resume != null) {
+            resume.complete(received);
+        }
+    }
+    
+    // Called for each FILE_ACK, gives back the credit used by one chunk of that upload
+    public void chunkAcknowledged(long transferId) {
+        Semaphore credits = sendCredits.get(transferId);
+        if (credits != null && credits.availablePermits() < SEND_WINDOW) {
+            credits.release();
+        }
+    }
+    
+    // Handles a file message, body holds its decrypted payload of the given length.
+    // replies sends FILE_RESUME back when a transfer starts
+    public void processFileMessage(Frame frame, byte[] body, int length, SendCallback replies) {
         try {
-            String[] parts = message.split(":", 4);
-            
-            if (parts.length < 2) {
-                return; // Not a valid file message
-            }
-            
-            String command = parts[0];
-            
-            if (command.equals(FILE_START)) {
-                if (parts.length >= 3) {
-                    String fileName = parts[1];
-                    long fileSize = Long.parseLong(parts[2]);
-                    
-                    // Validate file extension
-                    String extension = getFileExtension(fileName);
-                    if (!isAllowedExtension(extension)) {
-                        callback.onTransferError(fileName, "File type not allowed: " + extension);
-                        return;
-                    }
-                    
-                    // Initialize file transfer state
-                    fileSizes.put(fileName, fileSize);
-                    fileChunks.put(fileName, new HashMap<>());
-                    int totalChunks = (int) Math.ceil((double) fileSize / CHUNK_SIZE);
-                    totalChunksMap.put(fileName, totalChunks);
-                    
-                    callback.onTransferProgress(fileName, 0);
+            byte type = frame.getType();
+            long transferId = Messages.readTransferId(frame);
+            if (type == Protocol.FILE_START) {
+                String fileName = Messages.readFileName(frame);
+                long fileSize = Messages.readFileSize(frame);
+                
+                // Validate file extension
+                String extension = getFileExtension(fileName);
+                if (!isAllowedExtension(extension)) {
+                    replies.send(Messages.fileResume(transferId, new BitSet())); // The sender still waits for everyone
+                    callback.onTransferError(fileName, "File type not allowed: " + extension);
+                    return;
                 }
-            } 
-            else if (command.equals(FILE_CHUNK)) {
-                if (parts.length >= 4) {
-                    int chunkIndex = Integer.parseInt(parts[1]);
-                    int totalChunks = Integer.parseInt(parts[2]);
-                    String data = parts[3];
-                    
-                    processChunk(chunkIndex, totalChunks, data);
+                if (fileSize < 0 || fileSize > MAX_FILE_SIZE) {
+                    replies.send(Messages.fileResume(transferId, new BitSet()));
+                    callback.onTransferError(fileName, "File too large: " + fileSize + " bytes");
+                    return;
+                }
+                
+                IncomingFile incoming = startTransfer(transferId, fileName, fileSize, Messages.readContentHash(frame));
+                int progress;
+                BitSet received;
+                synchronized (incoming) {
+                    progress = incoming.progress();
+                    received = (BitSet) incoming.received.clone();
                 }
+                replies.send(Messages.fileResume(transferId, received)); // All set means this client has it already
+                callback.onTransferProgress(fileName, progress);
+            } 
+            else if (type == Protocol.FILE_CHUNK) {
+                processChunk(transferId, Messages.readChunkIndex(frame), Messages.readTotalChunks(frame), body, length);
             } 
-            else if (command.equals(FILE_END)) {
-                String fileName = parts[1];
-                completeTransfer(fileName);
+            else if (type == Protocol.FILE_END) {
+                completeTransfer(transferId);
             } 
-            else if (command.equals(FILE_ERROR)) {
-                String errorMessage = parts.length > 1 ? parts[1] : "Unknown error";
-                callback.onTransferError("Transfer", errorMessage);
+            else if (type == Protocol.FILE_ERROR) {
+                String errorMessage = length > 0 ? Messages.readText(body, length) : "Unknown error";
+                IncomingFile incoming = incomingFiles.remove(transferId);
+                if (incoming != null) {
+                    abortTransfer(incoming);
+                }
+                callback.onTransferError(incoming != null ? incoming.fileName : "Transfer", errorMessage);
             }
         } catch (Exception e) {
             System.err.println("Error processing file message: " + e.getMessage());
         }
     }
     
-    private void processChunk(int chunkIndex, int totalChunks, String data) {
-        try {
-            // Find the file this chunk belongs to
-            String fileName = null;
-            for (Map.Entry<String, Integer> entry : totalChunksMap.entrySet()) {
-                if (entry.getValue() == totalChunks && !completedFiles.contains(entry.getKey())) {
-                    fileName = entry.getKey();
-                    break;
-                }
+    // Creates the partial file at its full size, so chunks can be written at their offsets in any order.
+    // A copy of content this client already has starts out complete. Otherwise, if an earlier attempt at
+    // the same transfer left a partial file and bitmap behind, carries on from those
+    private IncomingFile startTransfer(long transferId, String fileName, long fileSize, byte[] contentHash) throws IOException {
+        IncomingFile previous = incomingFiles.remove(transferId);
+        if (previous != null) {
+            if (previous.fileName.equals(fileName) && previous.fileSize == fileSize) {
+                incomingFiles.put(transferId, previous); // The sender reconnected while this was still open
+                return previous;
             }
-            
-            if (fileName == null) {
-                System.err.println("Could not find active transfer for chunk: " + chunkIndex);
-                return;
-            }
-            
-            // Add the chunk
-            byte[] chunkData = Base64.getDecoder().decode(data);
-            
-            Map<Integer, byte[]> chunks = fileChunks.get(fileName);
-            chunks.put(chunkIndex, chunkData);
-            
-            // Check if complete
-            if (chunks.size() >= totalChunks) {
-                completedFiles.add(fileName);
+            abortTransfer(previous);
+        }
+        
+        // The ID keeps two downloads of the same name apart until they finish
+        String partialName = fileName + "." + Long.toHexString(transferId);
+        Path partialPath = Paths.get(DOWNLOAD_DIR, partialName + PARTIAL_SUFFIX);
+        Path checkpointPath = Paths.get(DOWNLOAD_DIR, partialName + CHECKPOINT_SUFFIX);
+        BitSet received = copyCached(contentHash, fileSize, partialPath);
+        if (received == null && Files.exists(partialPath)) {
+            received = loadCheckpoint(checkpointPath, fileSize);
+        }
+        
+        FileChannel channel;
+        if (received != null) {
+            channel = FileChannel.open(partialPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } else {
+            received = new BitSet();
+            channel = FileChannel.open(partialPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                if (fileSize > 0) {
+                    channel.write(ByteBuffer.wrap(new byte[1]), fileSize - 1);
+                }
+            } catch (IOException e) {
+                channel.close();
+                Files.deleteIfExists(partialPath);
+                throw e;
             }
-            
-            // Report progress
-            int progress = (int) ((chunks.size() * 100.0) / totalChunks);
-            callback.onTransferProgress(fileName, progress);
-            
-        } catch (Exception e) {
-            System.err.println("Error processing chunk: " + e.getMessage());
         }
+        IncomingFile incoming = new IncomingFile(fileName, fileSize, contentHash, partialPath, checkpointPath, channel, received);
+        incomingFiles.put(transferId, incoming);
+        return incoming;
     }
     
-    private void completeTransfer(String fileName) {
+    // Copies a file with the same content into the partial file, returning every chunk as received,
+    // or null if there's no such file here
+    private BitSet copyCached(byte[] contentHash, long fileSize, Path partialPath) {
+        Path cached = contentCache.find(contentHash, fileSize);
+        if (cached == null) {
+            return null;
+        }
         try {
-            if (!fileChunks.containsKey(fileName)) {
-                System.err.println("Could not find active transfer for file: " + fileName);
-                return;
+            Files.copy(cached, partialPath, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Could not copy " + cached + ", downloading instead: " + e.getMessage());
+            return null;
+        }
+        BitSet received = new BitSet();
+        received.set(0, (int) ((fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE));
+        return received;
+    }
+    
+    // Saved bitmap for a partial file, or null if there isn't a usable one
+    private static BitSet loadCheckpoint(Path checkpointPath, long fileSize) {
+        if (!Files.exists(checkpointPath)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(checkpointPath)))) {
+            if (in.readLong() != fileSize) {
+                return null;
             }
-            
-            // Check if all chunks have been received
-            int totalChunks = totalChunksMap.get(fileName);
-            Map<Integer, byte[]> chunks = fileChunks.get(fileName);
-            
-            if (chunks.size() < totalChunks) {
-                callback.onTransferError(fileName, "Incomplete file transfer");
+            return BitSet.valueOf(in.readAllBytes());
+        } catch (IOException e) {
+            System.err.println("Ignoring unreadable checkpoint " + checkpointPath + ": " + e.getMessage());
+            return null;
+        }
+    }
+    
+    // Saves which chunks are on disk, caller holds the lock on incoming. Chunk data is flushed first,
+    // and the bitmap is replaced in one step, so it never lists a chunk that isn't really there
+    private static void saveCheckpoint(IncomingFile incoming) throws IOException {
+        incoming.channel.force(false);
+        Path temp = incoming.checkpointPath.resolveSibling(incoming.checkpointPath.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeLong(incoming.fileSize);
+            out.write(incoming.received.toByteArray());
+        }
+        try {
+            Files.move(temp, incoming.checkpointPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, incoming.checkpointPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        incoming.uncheckpointed = 0;
+    }
+    
+    private void processChunk(long transferId, int chunkIndex, int totalChunks, byte[] chunkData, int length) {
+        IncomingFile incoming = incomingFiles.get(transferId);
+        if (incoming == null) {
+            System.err.println("Could not find active transfer for chunk: " + chunkIndex);
+            return;
+        }
+        
+        int progress;
+        synchronized (incoming) {
+            try {
+                // Every chunk but the last is full size, anything else would land outside the file
+                long position = (long) chunkIndex * CHUNK_SIZE;
+                if (totalChunks != incoming.totalChunks || chunkIndex < 0 || chunkIndex >= totalChunks
+                        || length != Math.min(CHUNK_SIZE, incoming.fileSize - position)) {
+                    System.err.println("Invalid chunk " + chunkIndex + " for file: " + incoming.fileName);
+                    return;
+                }
+                if (incoming.received.get(chunkIndex)) {
+                    return;
+                }
+                
+                // Write the chunk at its offset, the body buffer is reused as soon as this returns
+                ByteBuffer data = ByteBuffer.wrap(chunkData, 0, length);
+                while (data.hasRemaining()) {
+                    incoming.channel.write(data, position + data.position());
+                }
+                incoming.received.set(chunkIndex);
+                if (++incoming.uncheckpointed >= CHECKPOINT_INTERVAL) {
+                    saveCheckpoint(incoming);
+                }
+                progress = incoming.progress();
+            } catch (Exception e) {
+                System.err.println("Error processing chunk: " + e.getMessage());
                 return;
             }
-            
-            // Assemble file data
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            for (int i = 0; i < totalChunks; i++) {
-                byte[] chunk = chunks.get(i);
-                if (chunk != null) {
-                    outputStream.write(chunk, 0, chunk.length);
+        }
+        
+        // Report progress
+        callback.onTransferProgress(incoming.fileName, progress);
+    }
+    
+    private void completeTransfer(long transferId) {
+        IncomingFile incoming = incomingFiles.remove(transferId);
+        if (incoming == null) {
+            System.err.println("Could not find active transfer: " + Long.toHexString(transferId));
+            return;
+        }
+        String fileName = incoming.fileName;
+        
+        try {
+            Path filePath = Paths.get(DOWNLOAD_DIR, fileName);
+            synchronized (incoming) {
+                // Check if all chunks have been received, if not the file can be sent again to fill the gaps
+                if (!incoming.isComplete()) {
+                    suspendTransfer(incoming);
+                    callback.onTransferError(fileName, "Incomplete file transfer");
+                    return;
+                }
+                
+                // Only content that matches its hash goes in the cache, anything else is thrown away
+                if (incoming.contentHash != null
+                        && !Arrays.equals(incoming.contentHash, ContentCache.hash(incoming.channel, ByteBuffer.allocate(CHUNK_SIZE)))) {
+                    throw new IOException("Content does not match its hash");
+                }
+                
+                // Readers only ever see the finished file
+                incoming.channel.close();
+                try {
+                    Files.move(incoming.partialPath, filePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(incoming.partialPath, filePath, StandardCopyOption.REPLACE_EXISTING);
                 }
+                Files.deleteIfExists(incoming.checkpointPath);
+            }
+            if (incoming.contentHash != null) {
+                contentCache.put(incoming.contentHash, filePath);
             }
-            byte[] fileData = outputStream.toByteArray();
-            
-            // Save the file
-            String filePath = DOWNLOAD_DIR + File.separator + fileName;
-            Files.write(Paths.get(filePath), fileData);
-            File file = new File(filePath);
 
-            callback.onTransferComplete(fileName, file);
-            
-            // Clean up
-            fileSizes.remove(fileName);
-            fileChunks.remove(fileName);
-            totalChunksMap.remove(fileName);
-            completedFiles.remove(fileName);
+            callback.onTransferComplete(fileName, filePath.toFile());
             
         } catch (Exception e) {
+            abortTransfer(incoming);
             callback.onTransferError(fileName, "Error completing transfer: " + e.getMessage());
         }
     }
     
+    // Closes and deletes a partial download
+    private void abortTransfer(IncomingFile incoming) {
+        synchronized (incoming) {
+            try {
+                incoming.channel.close();
+                Files.deleteIfExists(incoming.partialPath);
+                Files.deleteIfExists(incoming.checkpointPath);
+            } catch (IOException e) {
+                System.err.println("Error removing partial file: " + e.getMessage());
+            }
+        }
+    }
+    
+    // Closes a partial download but keeps it and its bitmap, so the transfer can resume later
+    private void suspendTransfer(IncomingFile incoming) {
+        synchronized (incoming) {
+            try {
+                if (incoming.channel.isOpen()) {
+                    saveCheckpoint(incoming);
+                    incoming.channel.close();
+                }
+            } catch (IOException e) {
+                System.err.println("Error saving partial file: " + e.getMessage());
+            }
+        }
+    }
+    
     // Clean up resources
     public void shutdown() {
         transferExecutor.shutdown();
+        for (IncomingFile incoming : incomingFiles.values()) {
+            suspendTransfer(incoming);
+        }
+        incomingFiles.clear();
     }
 }
\ No newline at end of file
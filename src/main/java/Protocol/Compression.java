@@ -0,0 +1,123 @@
+package Protocol;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Deflate stage in front of encryption, one per connection that negotiated it. Chat is deflated against a
+// preset dictionary of text chat messages have in common, since a single message is too short to repeat
+// much of itself. Bodies that don't shrink by at least an eighth, like JPEG chunks, are sealed as they are.
+// The deflater holds native zlib memory, so the connection's owner closes it when the connection goes
+public class Compression {
+    private static final int MIN_LENGTH = 32; // Shorter bodies can't save enough to pay for the length field
+    // Most common text last, deflate finds the nearest match first
+    private static final byte[] CHAT_DICTIONARY = (" the and you that for with this have what are was but not just"
+            + " can will know about there think good thanks yes okay sorry please file sent send here now"
+            + " today tomorrow meeting work time see let me is it to of in on at a I"
+            + " .pdf .docx .jpg has left the chat. has joined the chat. Say hi! is sending file: "
+            + "] Server: ").getBytes(StandardCharsets.UTF_8);
+
+    private final boolean enabled;
+    private final Deflater deflater; // Null when not enabled
+    private boolean closed; // Deflater has been ended, everything is then sealed as it is
+    private byte[] output = new byte[1024]; // Deflated body, reused for every frame
+    private long originalBytes; // Bodies that were deflated, before and after
+    private long compressedBytes;
+    private long skippedBytes; // Bodies sent as they were
+
+    // enabled is false when the other end didn't negotiate compression, everything is then sealed as it is
+    public Compression(boolean enabled) {
+        this.enabled = enabled;
+        this.deflater = enabled ? new Deflater(Deflater.DEFAULT_COMPRESSION) : null;
+    }
+
+    // Encrypts a body into a frame, deflating it first if that makes it smaller
+    public Frame seal(byte type, byte[] header, byte[] body, int offset, int length) throws Exception {
+        return seal(type, header, body, offset, length, true);
+    }
+
+    // tryDeflate is false for content the caller knows won't shrink, it is still counted
+    public synchronized Frame seal(byte type, byte[] header, byte[] body, int offset, int length, boolean tryDeflate) throws Exception {
+        if (enabled && !closed && tryDeflate && length >= MIN_LENGTH && length <= Frame.MAX_INFLATED_LENGTH) {
+            int packed = deflate(type, body, offset, length);
+            if (packed > 0) {
+                originalBytes += length;
+                compressedBytes += packed;
+                return Frame.sealCompressed(type, header, output, packed, length);
+            }
+        }
+        skippedBytes += length;
+        return Frame.seal(type, header, body, offset, length);
+    }
+
+    // Deflated length, or -1 if it didn't save enough
+    private int deflate(byte type, byte[] body, int offset, int length) {
+        int limit = length - length / 8;
+        if (output.length < limit) {
+            output = new byte[Math.max(limit, output.length * 2)];
+        }
+        deflater.reset();
+        if (type == Protocol.CHAT) {
+            deflater.setDictionary(CHAT_DICTIONARY);
+        }
+        deflater.setInput(body, offset, length);
+        deflater.finish();
+        int packed = 0;
+        while (!deflater.finished() && packed < limit) {
+            packed += deflater.deflate(output, packed, limit - packed);
+        }
+        return deflater.finished() ? packed : -1;
+    }
+
+    // Inflates a body sealed by seal() into output, which needs room for length bytes
+    static int inflate(byte[] packed, int packedLength, byte[] output, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(packed, 0, packedLength);
+            int inflated = 0;
+            while (!inflater.finished()) {
+                int n = inflater.inflate(output, inflated, length - inflated);
+                inflated += n;
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(CHAT_DICTIONARY);
+                    } else if (inflated == length || inflater.needsInput()) {
+                        break;
+                    }
+                }
+            }
+            if (!inflater.finished() || inflated != length) {
+                throw new IOException("Compressed body doesn't match its length");
+            }
+            return inflated;
+        } catch (DataFormatException | IllegalArgumentException e) {
+            throw new IOException("Invalid compressed body: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Frees the deflater's native memory straight away instead of when it is garbage collected. An upload
+    // still holding this after the connection was replaced carries on uncompressed
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    // Bytes deflated so far as a percentage of their original size, for the metrics line
+    public synchronized String describe() {
+        int percent = originalBytes == 0 ? 100 : (int) (compressedBytes * 100 / originalBytes);
+        return "compressed " + originalBytes + " bytes to " + compressedBytes + " (" + percent + "%), "
+                + skippedBytes + " bytes sent uncompressed";
+    }
+}
@@ -0,0 +1,217 @@
+package Protocol;
+
+import Encryption.EncryptionTool;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// One message on the binary protocol:
+//   type byte, 2-byte routing header length, 4-byte payload length, routing header, payload
+// The routing header is plain so the server can route and inspect frames without any AES work,
+// only the payload is encrypted. Either part can be empty.
+// If the top bit of the type is set the body was deflated before encryption, and the payload is the
+// 4-byte inflated length followed by the encrypted deflated body
+public class Frame {
+    public static final int PREFIX_SIZE = 7;
+    public static final int MAX_HEADER_LENGTH = 0xFFFF;
+    public static final int MAX_PAYLOAD_LENGTH = 4 * 1024 * 1024; // Well above an encrypted 64KB file chunk
+    public static final int MAX_INFLATED_LENGTH = 256 * 1024; // Largest body that is ever compressed
+    private static final byte COMPRESSED = (byte) 0x80;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final byte type; // Including the compressed flag
+    private final byte[] header; // Plain routing fields, never changed once the frame exists
+    private final byte[] payload; // Encrypted message body, never changed once the frame exists
+    private volatile String textLine; // Same message for clients on the old line protocol, filled in when first needed
+    private volatile Frame uncompressed; // Same message for clients that didn't negotiate compression
+
+    public Frame(byte type, byte[] header, byte[] payload) {
+        this.type = type;
+        this.header = header;
+        this.payload = payload;
+    }
+
+    // A frame with only a routing header, the server can create these without encrypting anything
+    public static Frame plain(byte type, byte[] header) {
+        return new Frame(type, header, EMPTY);
+    }
+
+    // Encrypts a message body into a frame
+    public static Frame seal(byte type, byte[] header, byte[] body, int offset, int length) throws Exception {
+        byte[] payload = new byte[EncryptionTool.encryptedSize(length)];
+        int written = EncryptionTool.encrypt(body, offset, length, payload, 0);
+        return new Frame(type, header, written == payload.length ? payload : Arrays.copyOf(payload, written));
+    }
+
+    public static Frame seal(byte type, byte[] body) throws Exception {
+        return seal(type, EMPTY, body, 0, body.length);
+    }
+
+    // Encrypts a body Compression has already deflated, inflatedLength is its original size
+    static Frame sealCompressed(byte type, byte[] header, byte[] packed, int packedLength, int inflatedLength) throws Exception {
+        byte[] payload = new byte[4 + EncryptionTool.encryptedSize(packedLength)];
+        payload[0] = (byte) (inflatedLength >>> 24);
+        payload[1] = (byte) (inflatedLength >>> 16);
+        payload[2] = (byte) (inflatedLength >>> 8);
+        payload[3] = (byte) inflatedLength;
+        int written = 4 + EncryptionTool.encrypt(packed, 0, packedLength, payload, 4);
+        return new Frame((byte) (type | COMPRESSED), header, written == payload.length ? payload : Arrays.copyOf(payload, written));
+    }
+
+    // Decrypts the body into output, which needs room for getBodyCapacity() bytes
+    public int open(byte[] output) throws Exception {
+        if (isCompressed()) {
+            int inflatedLength = getInflatedLength();
+            if (payload.length < 4 || inflatedLength < 0 || inflatedLength > MAX_INFLATED_LENGTH) {
+                throw new IOException("Invalid compressed frame");
+            }
+            byte[] packed = new byte[payload.length - 4];
+            int packedLength = EncryptionTool.decrypt(payload, 4, packed.length, packed, 0);
+            return Compression.inflate(packed, packedLength, output, inflatedLength);
+        }
+        if (payload.length == 0) {
+            return 0;
+        }
+        return EncryptionTool.decrypt(payload, 0, payload.length, output, 0);
+    }
+
+    public byte[] open() throws Exception {
+        byte[] body = new byte[getBodyCapacity()];
+        return Arrays.copyOf(body, open(body));
+    }
+
+    // The same message sealed without compression, for a peer that can't inflate it
+    public Frame withoutCompression() throws Exception {
+        if (!isCompressed()) {
+            return this;
+        }
+        Frame plain = uncompressed;
+        if (plain == null) {
+            byte[] body = open();
+            plain = seal(getType(), header, body, 0, body.length);
+            uncompressed = plain;
+        }
+        return plain;
+    }
+
+    // Reads the next frame, returns null if the stream ends cleanly between frames
+    public static Frame readFrom(DataInputStream in) throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return null;
+        }
+        try {
+            int headerLength = in.readUnsignedShort();
+            int payloadLength = in.readInt();
+            if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_LENGTH) {
+                throw new IOException("Invalid frame length: " + payloadLength);
+            }
+            byte[] header = headerLength == 0 ? EMPTY : new byte[headerLength];
+            byte[] payload = payloadLength == 0 ? EMPTY : new byte[payloadLength];
+            in.readFully(header);
+            in.readFully(payload);
+            return new Frame((byte) type, header, payload);
+        } catch (EOFException e) {
+            throw new IOException("Connection closed in the middle of a frame");
+        }
+    }
+
+    // Copies a complete frame out of a buffer, data must hold PREFIX_SIZE + readBodyLength() bytes from offset
+    public static Frame parse(byte[] data, int offset) {
+        int headerStart = offset + PREFIX_SIZE;
+        int payloadStart = headerStart + readHeaderLength(data, offset);
+        int end = payloadStart + readPayloadLength(data, offset);
+        byte[] header = payloadStart == headerStart ? EMPTY : Arrays.copyOfRange(data, headerStart, payloadStart);
+        byte[] payload = end == payloadStart ? EMPTY : Arrays.copyOfRange(data, payloadStart, end);
+        return new Frame(data[offset], header, payload);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] prefix = new byte[PREFIX_SIZE];
+        writePrefix(prefix);
+        out.write(prefix);
+        out.write(header);
+        out.write(payload);
+    }
+
+    // Puts the encoded frame into buffer, which needs getEncodedLength() bytes of room
+    public void writeTo(ByteBuffer buffer) {
+        byte[] prefix = new byte[PREFIX_SIZE];
+        writePrefix(prefix);
+        buffer.put(prefix).put(header).put(payload);
+    }
+
+    public ByteBuffer toBuffer() {
+        byte[] encoded = new byte[getEncodedLength()];
+        writePrefix(encoded);
+        System.arraycopy(header, 0, encoded, PREFIX_SIZE, header.length);
+        System.arraycopy(payload, 0, encoded, PREFIX_SIZE + header.length, payload.length);
+        return ByteBuffer.wrap(encoded);
+    }
+
+    private void writePrefix(byte[] prefix) {
+        prefix[0] = type;
+        prefix[1] = (byte) (header.length >>> 8);
+        prefix[2] = (byte) header.length;
+        prefix[3] = (byte) (payload.length >>> 24);
+        prefix[4] = (byte) (payload.length >>> 16);
+        prefix[5] = (byte) (payload.length >>> 8);
+        prefix[6] = (byte) payload.length;
+    }
+
+    // Lengths stored in a prefix at the given offset
+    public static int readHeaderLength(byte[] data, int offset) {
+        return ((data[offset + 1] & 0xFF) << 8) | (data[offset + 2] & 0xFF);
+    }
+
+    public static int readPayloadLength(byte[] data, int offset) {
+        return ((data[offset + 3] & 0xFF) << 24) | ((data[offset + 4] & 0xFF) << 16)
+                | ((data[offset + 5] & 0xFF) << 8) | (data[offset + 6] & 0xFF);
+    }
+
+    public byte getType() {
+        return (byte) (type & ~COMPRESSED);
+    }
+
+    public boolean isCompressed() {
+        return (type & COMPRESSED) != 0;
+    }
+
+    // Plain routing fields, callers must not change the array
+    public byte[] getHeader() {
+        return header;
+    }
+
+    public int getPayloadLength() {
+        return payload.length;
+    }
+
+    // Size of the body before compression, only for compressed frames
+    public int getInflatedLength() {
+        if (payload.length < 4) {
+            return -1;
+        }
+        return ((payload[0] & 0xFF) << 24) | ((payload[1] & 0xFF) << 16) | ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF);
+    }
+
+    // Room open() needs for the body
+    public int getBodyCapacity() {
+        return isCompressed() ? Math.max(0, Math.min(getInflatedLength(), MAX_INFLATED_LENGTH)) : payload.length;
+    }
+
+    public int getEncodedLength() {
+        return PREFIX_SIZE + header.length + payload.length;
+    }
+
+    public String getTextLine() {
+        return textLine;
+    }
+
+    public void setTextLine(String textLine) {
+        this.textLine = textLine;
+    }
+}
@@ -0,0 +1,286 @@
+package Protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Builds and reads each frame type. Fields are fixed-size numbers or length-prefixed strings, and the
+// last field simply runs to the end, so names and passwords can contain anything.
+// Anything the server needs to route on goes in the plain routing header, everything else is encrypted.
+// Chat and chunk bodies may also be compressed, see Frame and Compression.
+//   AUTH_LOGIN / AUTH_REGISTER: body = 2-byte username length, username, password
+//   AUTH_SUCCESS / AUTH_FAILURE: nothing
+//   AUTH_RETRY: header = 2-byte number of seconds to wait before trying again
+//   SESSION_TOKEN: body = token, only the server can read it
+//   AUTH_RESUME: header = 8-byte number of the last chat or notice received (0 if none); body = token
+//   SEQUENCE: header = 8-byte session ID, 8-byte number of the next chat or notice
+//   MESSAGE_ACK: header = 8-byte number of the last chat or notice received
+//   ROOM_JOIN: header = room name
+//   ROOM_LEAVE: nothing
+//   CHAT: body = text
+//   NOTICE: header = text written by the server
+// File messages all start their header with the 8-byte ID of the transfer they belong to
+//   FILE_START: header = transfer ID, 8-byte file size, 32-byte SHA-256 of the content (zeros if unknown), file name
+//   FILE_CHUNK: header = transfer ID, 4-byte chunk index, 4-byte chunk count; body = raw chunk bytes
+//   FILE_END: header = transfer ID, file name
+//   FILE_ERROR: header = transfer ID; body = text
+//   FILE_ACK: header = transfer ID, 4-byte chunk index
+//   FILE_RESUME: header = transfer ID, bitmap of chunks already received (BitSet byte order)
+public class Messages {
+    public static final int CHUNK_HEADER_SIZE = 16;
+    public static final int CONTENT_HASH_SIZE = 32;
+    private static final int FILE_START_NAME_OFFSET = 16 + CONTENT_HASH_SIZE;
+    private static final int MAX_USERNAME_BYTES = 0xFFFF;
+
+    public static Frame chat(String text) throws Exception {
+        return Frame.seal(Protocol.CHAT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Chat from a client, deflated if its connection negotiated compression
+    public static Frame chat(String text, Compression compression) throws Exception {
+        byte[] body = utf8(text);
+        return compression.seal(Protocol.CHAT, new byte[0], body, 0, body.length);
+    }
+
+    // Server announcements, built without any encryption
+    public static Frame notice(String text) {
+        return Frame.plain(Protocol.NOTICE, utf8(text));
+    }
+
+    public static Frame authRequest(byte type, String username, String password) throws Exception {
+        byte[] name = utf8(username);
+        byte[] secret = utf8(password);
+        if (name.length > MAX_USERNAME_BYTES) {
+            throw new IllegalArgumentException("Username too long");
+        }
+        byte[] body = new byte[2 + name.length + secret.length];
+        body[0] = (byte) (name.length >>> 8);
+        body[1] = (byte) name.length;
+        System.arraycopy(name, 0, body, 2, name.length);
+        System.arraycopy(secret, 0, body, 2 + name.length, secret.length);
+        return Frame.seal(type, body);
+    }
+
+    public static Frame authResult(boolean success) {
+        return Frame.plain(success ? Protocol.AUTH_SUCCESS : Protocol.AUTH_FAILURE, new byte[0]);
+    }
+
+    // The login or registration wasn't checked, the client may try again after this many seconds
+    public static Frame authRetry(int seconds) {
+        int wait = Math.min(Math.max(seconds, 1), 0xFFFF);
+        return Frame.plain(Protocol.AUTH_RETRY, new byte[]{(byte) (wait >>> 8), (byte) wait});
+    }
+
+    public static int readRetrySeconds(Frame frame) {
+        byte[] header = frame.getHeader();
+        return header.length < 2 ? 1 : ((header[0] & 0xFF) << 8) | (header[1] & 0xFF);
+    }
+
+    public static Frame sessionToken(byte[] token) throws Exception {
+        return Frame.seal(Protocol.SESSION_TOKEN, token);
+    }
+
+    public static Frame authResume(byte[] token, long lastReceived) throws Exception {
+        byte[] header = new byte[8];
+        putLong(header, 0, lastReceived);
+        return Frame.seal(Protocol.AUTH_RESUME, header, token, 0, token.length);
+    }
+
+    public static Frame sequence(long sessionId, long next) {
+        byte[] header = new byte[16];
+        putLong(header, 0, sessionId);
+        putLong(header, 8, next);
+        return Frame.plain(Protocol.SEQUENCE, header);
+    }
+
+    public static Frame messageAck(long lastReceived) {
+        byte[] header = new byte[8];
+        putLong(header, 0, lastReceived);
+        return Frame.plain(Protocol.MESSAGE_ACK, header);
+    }
+
+    public static Frame roomJoin(String room) {
+        return Frame.plain(Protocol.ROOM_JOIN, checkHeader(utf8(room)));
+    }
+
+    public static Frame roomLeave() {
+        return Frame.plain(Protocol.ROOM_LEAVE, new byte[0]);
+    }
+
+    public static String readRoom(Frame frame) {
+        return readText(frame.getHeader(), frame.getHeader().length);
+    }
+
+    // Random IDs, so senders never need to agree on them
+    public static long newTransferId() {
+        return ThreadLocalRandom.current().nextLong();
+    }
+
+    // contentHash is null when the sender doesn't know it, like text clients
+    public static Frame fileStart(long transferId, byte[] contentHash, String fileName, long fileSize) {
+        byte[] name = utf8(fileName);
+        byte[] header = new byte[FILE_START_NAME_OFFSET + name.length];
+        putLong(header, 0, transferId);
+        putLong(header, 8, fileSize);
+        if (contentHash != null) {
+            System.arraycopy(contentHash, 0, header, 16, CONTENT_HASH_SIZE);
+        }
+        System.arraycopy(name, 0, header, FILE_START_NAME_OFFSET, name.length);
+        return Frame.plain(Protocol.FILE_START, checkHeader(header));
+    }
+
+    public static Frame fileChunk(long transferId, int chunkIndex, int totalChunks, byte[] data, int offset, int length) throws Exception {
+        return Frame.seal(Protocol.FILE_CHUNK, chunkHeader(transferId, chunkIndex, totalChunks), data, offset, length);
+    }
+
+    // Chunk from a client, deflated if its connection negotiated compression and tryDeflate is set
+    public static Frame fileChunk(long transferId, int chunkIndex, int totalChunks, byte[] data, int offset, int length,
+            Compression compression, boolean tryDeflate) throws Exception {
+        return compression.seal(Protocol.FILE_CHUNK, chunkHeader(transferId, chunkIndex, totalChunks), data, offset, length, tryDeflate);
+    }
+
+    private static byte[] chunkHeader(long transferId, int chunkIndex, int totalChunks) {
+        byte[] header = new byte[CHUNK_HEADER_SIZE];
+        putLong(header, 0, transferId);
+        putInt(header, 8, chunkIndex);
+        putInt(header, 12, totalChunks);
+        return header;
+    }
+
+    public static Frame fileEnd(long transferId, String fileName) {
+        byte[] name = utf8(fileName);
+        byte[] header = new byte[8 + name.length];
+        putLong(header, 0, transferId);
+        System.arraycopy(name, 0, header, 8, name.length);
+        return Frame.plain(Protocol.FILE_END, checkHeader(header));
+    }
+
+    public static Frame fileAck(long transferId, int chunkIndex) {
+        byte[] header = new byte[12];
+        putLong(header, 0, transferId);
+        putInt(header, 8, chunkIndex);
+        return Frame.plain(Protocol.FILE_ACK, header);
+    }
+
+    public static Frame fileResume(long transferId, BitSet received) {
+        byte[] bitmap = received.toByteArray();
+        byte[] header = new byte[8 + bitmap.length];
+        putLong(header, 0, transferId);
+        System.arraycopy(bitmap, 0, header, 8, bitmap.length);
+        return Frame.plain(Protocol.FILE_RESUME, checkHeader(header));
+    }
+
+    public static Frame fileError(long transferId, String errorMessage) throws Exception {
+        byte[] header = new byte[8];
+        putLong(header, 0, transferId);
+        byte[] text = utf8(errorMessage);
+        return Frame.seal(Protocol.FILE_ERROR, header, text, 0, text.length);
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] checkHeader(byte[] header) {
+        if (header.length > Frame.MAX_HEADER_LENGTH) {
+            throw new IllegalArgumentException("Routing header too long");
+        }
+        return header;
+    }
+
+    // Readers for decrypted bodies of the given length
+
+    public static String readText(byte[] body, int length) {
+        return new String(body, 0, length, StandardCharsets.UTF_8);
+    }
+
+    public static String readUsername(byte[] body, int length) {
+        int nameLength = ((body[0] & 0xFF) << 8) | (body[1] & 0xFF);
+        return new String(body, 2, Math.min(nameLength, length - 2), StandardCharsets.UTF_8);
+    }
+
+    public static String readPassword(byte[] body, int length) {
+        int start = Math.min(length, 2 + (((body[0] & 0xFF) << 8) | (body[1] & 0xFF)));
+        return new String(body, start, length - start, StandardCharsets.UTF_8);
+    }
+
+    // Readers for routing headers, no decryption needed
+
+    public static String readNotice(Frame frame) {
+        return readText(frame.getHeader(), frame.getHeader().length);
+    }
+
+    public static long readTransferId(Frame frame) {
+        return getLong(frame.getHeader(), 0);
+    }
+
+    public static long readFileSize(Frame frame) {
+        return getLong(frame.getHeader(), 8);
+    }
+
+    public static String readFileName(Frame frame) {
+        byte[] header = frame.getHeader();
+        int start = frame.getType() == Protocol.FILE_START ? FILE_START_NAME_OFFSET : 8;
+        return new String(header, start, header.length - start, StandardCharsets.UTF_8);
+    }
+
+    // Content hash of a FILE_START, or null if the sender didn't give one
+    public static byte[] readContentHash(Frame frame) {
+        byte[] hash = Arrays.copyOfRange(frame.getHeader(), 16, FILE_START_NAME_OFFSET);
+        for (byte b : hash) {
+            if (b != 0) {
+                return hash;
+            }
+        }
+        return null;
+    }
+
+    // Message number in an AUTH_RESUME or MESSAGE_ACK, the next one in a SEQUENCE
+    public static long readSequence(Frame frame) {
+        byte[] header = frame.getHeader();
+        if (frame.getType() == Protocol.SEQUENCE) {
+            return header.length < 16 ? 0 : getLong(header, 8);
+        }
+        return header.length < 8 ? 0 : getLong(header, 0);
+    }
+
+    public static long readSessionId(Frame frame) {
+        return frame.getHeader().length < 16 ? 0 : getLong(frame.getHeader(), 0);
+    }
+
+    // Chunk index of a FILE_CHUNK or FILE_ACK
+    public static int readChunkIndex(Frame frame) {
+        return getInt(frame.getHeader(), 8);
+    }
+
+    public static int readTotalChunks(Frame frame) {
+        return getInt(frame.getHeader(), 12);
+    }
+
+    public static BitSet readChunkBitmap(Frame frame) {
+        byte[] header = frame.getHeader();
+        return BitSet.valueOf(Arrays.copyOfRange(header, 8, header.length));
+    }
+
+    private static void putLong(byte[] data, int offset, long value) {
+        putInt(data, offset, (int) (value >>> 32));
+        putInt(data, offset + 4, (int) value);
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        return ((long) getInt(data, offset) << 32) | (getInt(data, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+}
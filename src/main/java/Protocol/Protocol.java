@@ -0,0 +1,92 @@
+package Protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+// Message types and version negotiation for the binary protocol
+public class Protocol {
+    public static final int VERSION = 4; // Highest version this build speaks
+    public static final int COMPRESSION_VERSION = 2; // First version where frames may be compressed
+    public static final int ACK_VERSION = 3; // First version where chat is numbered, acknowledged and replayed
+    public static final int ROOMS_VERSION = 4; // First version where clients can join rooms
+    public static final String HELLO = "PROTOCOL:"; // Plain line from the client right after it gets the key
+    public static final String HELLO_OK = "PROTOCOL_OK:"; // Plain line from the server, binary frames follow it
+
+    // Frame types
+    public static final byte AUTH_LOGIN = 1;
+    public static final byte AUTH_REGISTER = 2;
+    public static final byte AUTH_SUCCESS = 3;
+    public static final byte AUTH_FAILURE = 4;
+    public static final byte CHAT = 5;
+    public static final byte FILE_START = 6;
+    public static final byte FILE_CHUNK = 7;
+    public static final byte FILE_END = 8;
+    public static final byte FILE_ERROR = 9;
+    public static final byte NOTICE = 10; // Text from the server itself, carried in the routing header
+    public static final byte FILE_ACK = 11; // Server to sender, one chunk has been relayed and the sender may send another
+    public static final byte FILE_RESUME = 12; // Chunks already received, receiver to server and then merged from server to sender
+    public static final byte AUTH_RETRY = 13; // Server too busy to check a login or registration, or too many from one address
+    public static final byte SESSION_TOKEN = 14; // Server to a logged in client, lets it log back in after losing its connection
+    public static final byte AUTH_RESUME = 15; // Client to server instead of a login, carrying its last session token
+    public static final byte SEQUENCE = 16; // Server to client, number of the next chat or notice, sent when numbering (re)starts
+    public static final byte MESSAGE_ACK = 17; // Client to server, every chat and notice up to this number has arrived
+    public static final byte ROOM_JOIN = 18; // Client to server, chat and files from now on go to the named room
+    public static final byte ROOM_LEAVE = 19; // Client to server, back to the lobby every client starts in
+
+    // Chat and notices are numbered on version 3 connections. The numbers aren't sent, both sides count them
+    // from the last SEQUENCE frame, so one encoded frame can still go to every client
+    public static boolean isSequenced(byte type) {
+        return type == CHAT || type == NOTICE;
+    }
+
+    public static boolean isFileMessage(byte type) {
+        return type == FILE_START || type == FILE_CHUNK || type == FILE_END || type == FILE_ERROR;
+    }
+
+    public static String createHello() {
+        return HELLO + VERSION;
+    }
+
+    public static String createHelloReply(int version) {
+        return HELLO_OK + version;
+    }
+
+    // Version number after the given prefix, or -1 if the line isn't that message
+    public static int parseVersion(String line, String prefix) {
+        if (!line.startsWith(prefix)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(line.substring(prefix.length()).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Reads one text line straight from the stream, so nothing past it gets buffered away from the frame reader
+    public static String readLine(InputStream in, int maxLength) throws IOException {
+        byte[] line = new byte[128];
+        int length = 0;
+        int next;
+        while ((next = in.read()) != '\n') {
+            if (next < 0) {
+                if (length == 0) {
+                    return null;
+                }
+                break;
+            }
+            if (length == maxLength) {
+                throw new IOException("Line too long");
+            }
+            if (length == line.length) {
+                line = Arrays.copyOf(line, Math.min(maxLength, line.length * 2));
+            }
+            line[length++] = (byte) next;
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new String(line, 0, length);
+    }
+}
@@ -0,0 +1,264 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Decides who gets a connection slot. Queued clients are just entries in a list, no thread waits for them.
+public class AdmissionController {
+    private static final double INTERVAL_SMOOTHING = 0.3; // Weight of the newest release interval in the average
+
+    // Callbacks for one client asking for a slot, called without the controller's lock held
+    public abstract static class Waiter {
+        private final ReentrantLock deliveryLock = new ReentrantLock();
+        private boolean settled; // Admitted or rejected, no more queue updates after that
+
+        // A slot was granted, wasWaiting says if the client was told it is queued
+        protected abstract void admitted(boolean wasWaiting);
+
+        // Queue update to pass on to the client
+        protected abstract void status(String message);
+
+        // The client won't get a slot, it should be told why and disconnected
+        protected abstract void rejected(String message);
+
+        // A queue update still being written must finish before the client is admitted or turned away
+        private void deliverStatus(String message) {
+            deliveryLock.lock();
+            try {
+                if (!settled) {
+                    status(message);
+                }
+            } finally {
+                deliveryLock.unlock();
+            }
+        }
+
+        private void deliverAdmitted(boolean wasWaiting) {
+            settle();
+            admitted(wasWaiting);
+        }
+
+        private void deliverRejected(String message) {
+            settle();
+            rejected(message);
+        }
+
+        private void settle() {
+            deliveryLock.lock();
+            try {
+                settled = true;
+            } finally {
+                deliveryLock.unlock();
+            }
+        }
+    }
+
+    private static final class QueueEntry {
+        final long deadline; // System.nanoTime() at which the client gives up, 0 for never
+
+        QueueEntry(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Waiter, QueueEntry> waiting = new LinkedHashMap<>(); // In arrival order
+    private final int maxQueueLength;
+    private final long waitTimeoutNanos;
+    private final int updateIntervalSeconds;
+    private final ScheduledExecutorService timer;
+    private int capacity;
+    private int active;
+    private long lastReleaseNanos;
+    private double averageReleaseNanos; // How often a slot frees up, 0 until we have seen two releases
+    private long ticks;
+
+    public AdmissionController(int capacity, int maxQueueLength, int waitTimeoutSeconds, int updateIntervalSeconds) {
+        this.capacity = capacity;
+        this.maxQueueLength = maxQueueLength;
+        this.waitTimeoutNanos = TimeUnit.SECONDS.toNanos(waitTimeoutSeconds);
+        this.updateIntervalSeconds = Math.max(1, updateIntervalSeconds);
+        this.timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "admission-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(this::tick, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // Admits the client now, queues it, or turns it away if the queue is full
+    public void requestAdmission(Waiter waiter) {
+        int position;
+        lock.lock();
+        try {
+            // Anyone already queued goes first
+            if (waiting.isEmpty() && active < capacity) {
+                active++;
+                position = 0;
+            } else if (waiting.size() >= maxQueueLength) {
+                position = -1;
+            } else {
+                long deadline = waitTimeoutNanos > 0 ? System.nanoTime() + waitTimeoutNanos : 0;
+                waiting.put(waiter, new QueueEntry(deadline));
+                position = waiting.size();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (position == 0) {
+            waiter.deliverAdmitted(false);
+        } else if (position < 0) {
+            waiter.deliverRejected("SERVER_FULL:Server is full and the waiting queue is full. Please try again later.");
+        } else {
+            waiter.deliverStatus("SERVER_WAITING:Server is currently full. You are in a waiting queue. Please wait...");
+            waiter.deliverStatus(positionMessage(position));
+        }
+    }
+
+    // A client holding a slot has left
+    public void release() {
+        lock.lock();
+        try {
+            active = Math.max(0, active - 1);
+            long now = System.nanoTime();
+            if (lastReleaseNanos != 0) {
+                long interval = now - lastReleaseNanos;
+                averageReleaseNanos = averageReleaseNanos == 0 ? interval
+                        : INTERVAL_SMOOTHING * interval + (1 - INTERVAL_SMOOTHING) * averageReleaseNanos;
+            }
+            lastReleaseNanos = now;
+        } finally {
+            lock.unlock();
+        }
+        admitWaiting();
+    }
+
+    // A queued client disconnected or was dropped, returns false if it was not queued
+    public boolean cancel(Waiter waiter) {
+        lock.lock();
+        try {
+            return waiting.remove(waiter) != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Changes the limit at runtime, clients above a lowered limit keep their slots until they leave
+    public void setCapacity(int capacity) {
+        lock.lock();
+        try {
+            this.capacity = Math.max(1, capacity);
+        } finally {
+            lock.unlock();
+        }
+        admitWaiting();
+    }
+
+    // Hands free slots to queued clients in order
+    private void admitWaiting() {
+        List<Waiter> admitted = new ArrayList<>();
+        lock.lock();
+        try {
+            Iterator<Waiter> iterator = waiting.keySet().iterator();
+            while (active < capacity && iterator.hasNext()) {
+                admitted.add(iterator.next());
+                iterator.remove();
+                active++;
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Waiter waiter : admitted) {
+            waiter.deliverAdmitted(true);
+        }
+    }
+
+    // Runs every second: drops clients that waited too long and sends position updates
+    private void tick() {
+        List<Waiter> expired = new ArrayList<>();
+        List<Waiter> toUpdate = new ArrayList<>();
+        lock.lock();
+        try {
+            ticks++;
+            long now = System.nanoTime();
+            Iterator<Map.Entry<Waiter, QueueEntry>> iterator = waiting.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Waiter, QueueEntry> entry = iterator.next();
+                if (entry.getValue().deadline != 0 && now - entry.getValue().deadline > 0) {
+                    expired.add(entry.getKey());
+                    iterator.remove();
+                }
+            }
+            if (ticks % updateIntervalSeconds == 0) {
+                toUpdate.addAll(waiting.keySet());
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (Waiter waiter : expired) {
+            waiter.deliverRejected("SERVER_FULL:Timed out waiting for a free slot. Please try again later.");
+        }
+        for (int i = 0; i < toUpdate.size(); i++) {
+            toUpdate.get(i).deliverStatus(positionMessage(i + 1));
+        }
+    }
+
+    private String positionMessage(int position) {
+        double average;
+        lock.lock();
+        try {
+            average = averageReleaseNanos;
+        } finally {
+            lock.unlock();
+        }
+
+        String estimate;
+        if (average == 0) {
+            estimate = "unknown";
+        } else {
+            long seconds = TimeUnit.NANOSECONDS.toSeconds((long) (average * position));
+            estimate = seconds < 60 ? "less than a minute" : "about " + (seconds + 30) / 60 + " minute(s)";
+        }
+        return "SERVER_WAITING:You are number " + position + " in the queue. Estimated wait: " + estimate + ".";
+    }
+
+    public int getCapacity() {
+        lock.lock();
+        try {
+            return capacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getActiveConnections() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getWaitingCount() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,122 @@
+package Server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Checks logins and registrations on a small pool of its own, so a login storm after a restart can't take
+// the CPU that relays chat, and only so many checks are ever waiting. Each address also has a budget of
+// attempts that refills over time. Anything over either limit is turned away at once with a retry delay
+public class AuthService {
+    private static final int BURST_ATTEMPTS = 10; // An address can try this many times back to back
+    private static final int MAX_TRACKED_ADDRESSES = 10000; // Addresses with a full budget are forgotten above this
+    private static final int BUSY_RETRY_SECONDS = 1;
+
+    private final ThreadPoolExecutor executor;
+    private final long refillNanos; // Time for one attempt to come back, 0 when addresses aren't throttled
+    private final ConcurrentHashMap<InetAddress, Budget> budgets = new ConcurrentHashMap<>();
+
+    // Kept apart from message relaying, so a login storm shows up here and nowhere else
+    private final LongAdder checked = new LongAdder();
+    private final LongAdder turnedAwayBusy = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder(); // In the queue before a worker picked it up
+    private final LongAdder checkNanos = new LongAdder(); // Checking the credentials and replying
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator maxCheckNanos = new LongAccumulator(Math::max, 0);
+
+    // Attempts left for one address, replaced as a whole so updates need no lock
+    private record Budget(double attempts, long updatedAt) {
+        Budget refilled(long now, long refillNanos) {
+            double attempts = Math.min(BURST_ATTEMPTS, this.attempts + (double) (now - updatedAt) / refillNanos);
+            return new Budget(attempts, now);
+        }
+    }
+
+    // attemptsPerMinute of 0 turns off the per-address limit
+    public AuthService(int threads, int queueLength, int attemptsPerMinute) {
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueLength)), task -> {
+                    Thread thread = new Thread(task, "auth-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.refillNanos = attemptsPerMinute > 0 ? TimeUnit.MINUTES.toNanos(1) / attemptsPerMinute : 0;
+    }
+
+    // Queues a check for a client at address. Returns 0 if it was queued, otherwise the number of
+    // seconds the client should wait before trying again
+    public int submit(InetAddress address, Runnable check) {
+        int wait = takeAttempt(address);
+        if (wait > 0) {
+            throttled.increment();
+            return wait;
+        }
+        long queuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                long startedAt = System.nanoTime();
+                try {
+                    check.run();
+                } finally {
+                    long finishedAt = System.nanoTime();
+                    checked.increment();
+                    waitNanos.add(startedAt - queuedAt);
+                    checkNanos.add(finishedAt - startedAt);
+                    maxWaitNanos.accumulate(startedAt - queuedAt);
+                    maxCheckNanos.accumulate(finishedAt - startedAt);
+                }
+            });
+            return 0;
+        } catch (RejectedExecutionException e) {
+            turnedAwayBusy.increment();
+            return BUSY_RETRY_SECONDS;
+        }
+    }
+
+    // Uses up one of the address's attempts, returns 0 if it had one or else seconds until it will
+    private int takeAttempt(InetAddress address) {
+        if (refillNanos == 0 || address == null) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        if (budgets.size() > MAX_TRACKED_ADDRESSES) {
+            budgets.values().removeIf(budget -> budget.refilled(now, refillNanos).attempts() >= BURST_ATTEMPTS);
+        }
+        boolean[] allowed = new boolean[1];
+        Budget budget = budgets.compute(address, (key, current) -> {
+            Budget refilled = current == null ? new Budget(BURST_ATTEMPTS, now) : current.refilled(now, refillNanos);
+            allowed[0] = refilled.attempts() >= 1;
+            return allowed[0] ? new Budget(refilled.attempts() - 1, now) : refilled;
+        });
+        if (allowed[0]) {
+            return 0;
+        }
+        double missing = 1 - budget.attempts();
+        return (int) Math.max(1, Math.ceil(missing * refillNanos / 1e9));
+    }
+
+    // One line for the console, separate from anything about relaying
+    public String describe() {
+        long count = checked.sum();
+        return "Auth: " + count + " checked, wait avg " + averageMillis(waitNanos.sum(), count) + "ms max "
+                + maxWaitNanos.get() / 1_000_000 + "ms, check avg " + averageMillis(checkNanos.sum(), count)
+                + "ms max " + maxCheckNanos.get() / 1_000_000 + "ms, " + executor.getQueue().size() + " queued, "
+                + turnedAwayBusy.sum() + " turned away busy, " + throttled.sum() + " throttled";
+    }
+
+    private static String averageMillis(long totalNanos, long count) {
+        return count == 0 ? "0" : String.format("%.2f", totalNanos / 1e6 / count);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,170 @@
+package Server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+// Transport for the thread-per-client modes, a writer thread drains the queue to the socket
+public class BlockingTransport implements ClientTransport, Runnable {
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();
+
+    private Socket socket;
+    private OutputStream output;
+    private WritableByteChannel outputChannel; // Same stream, for copying chunks out of the file spool
+    private OutboundQueue queue;
+    private volatile boolean binaryProtocol;
+
+    public BlockingTransport(Socket socket, OutboundQueue queue) throws IOException {
+        this.socket = socket;
+        this.output = new BufferedOutputStream(socket.getOutputStream(), OutboundQueue.BATCH_BYTES); // Sends data to client
+        this.outputChannel = Channels.newChannel(output);
+        this.queue = queue;
+    }
+
+    // Writer thread, the only thread that touches the socket's output stream
+    @Override
+    public void run() {
+        try {
+            OutboundQueue.Entry entry;
+            while ((entry = queue.take()) != null) {
+                // Everything already queued, and whatever else comes within the linger time, goes out in one flush
+                long deadline = System.nanoTime() + queue.getLingerNanos();
+                long batched = write(entry);
+                while (batched < OutboundQueue.BATCH_BYTES && (entry = queue.poll(deadline)) != null) {
+                    batched += write(entry);
+                }
+                output.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("Error writing to " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+        }
+        queue.close();
+        queue.clear(); // Gives back the frames nobody will write now
+        closeSocket();
+    }
+
+    // Writes one entry into the buffered stream and returns how many bytes that was
+    private long write(OutboundQueue.Entry entry) throws IOException {
+        try {
+            return writeEntry(entry);
+        } finally {
+            entry.release();
+        }
+    }
+
+    private long writeEntry(OutboundQueue.Entry entry) throws IOException {
+        FileSpool.Region region = entry.getRegion();
+        if (entry.getLine() != null) {
+            return writeLine(entry.getLine());
+        } else if (region != null && !region.isAvailable()) {
+            return 0; // Removed from the spool while this was queued
+        } else if (entry.getEncoded() != null) {
+            ByteBuffer encoded = entry.getEncoded();
+            int length = encoded.remaining();
+            while (encoded.hasRemaining()) {
+                outputChannel.write(encoded);
+            }
+            return length;
+        } else if (binaryProtocol && region != null) {
+            long written = 0;
+            while (written < region.getLength()) {
+                written += region.transferTo(written, outputChannel);
+            }
+            return written;
+        } else if (binaryProtocol) {
+            // Straight from the frame's own arrays, the buffered stream packs them with the rest of the batch
+            entry.getFrame().getFrame().writeTo(output);
+            return entry.getFrame().getFrame().getEncodedLength();
+        } else {
+            String line;
+            try {
+                line = TextCompat.toTextLine(region != null ? region.readFrame() : entry.getFrame().getFrame());
+            } catch (Exception e) {
+                System.out.println("Error converting message for text client: " + e.getMessage());
+                return 0;
+            }
+            return writeLine(line);
+        }
+    }
+
+    private int writeLine(String line) throws IOException {
+        byte[] text = line.getBytes();
+        output.write(text);
+        output.write(LINE_SEPARATOR);
+        return text.length + LINE_SEPARATOR.length;
+    }
+
+    @Override
+    public void sendLine(String line) {
+        if (!queue.offerLine(line)) {
+            disconnectSlowClient();
+        }
+    }
+
+    @Override
+    public void sendFrame(SharedFrame frame, boolean fileData) {
+        if (!queue.offerFrame(frame, fileData)) {
+            disconnectSlowClient();
+        }
+    }
+
+    @Override
+    public void sendSequenced(SharedFrame frame) {
+        if (!queue.offerSequenced(frame)) {
+            disconnectSlowClient();
+        }
+    }
+
+    @Override
+    public void sendEncoded(ByteBuffer encoded) {
+        if (!queue.offerEncoded(encoded)) {
+            disconnectSlowClient();
+        }
+    }
+
+    @Override
+    public void sendRegion(FileSpool.Region region) {
+        if (!queue.offerRegion(region)) {
+            disconnectSlowClient();
+        }
+    }
+
+    private void disconnectSlowClient() {
+        System.out.println("Client " + socket.getRemoteSocketAddress() + " is too slow, disconnecting");
+        // The reader thread sees the closed socket and cleans up
+        queue.close();
+        queue.clear();
+        closeSocket();
+    }
+
+    @Override
+    public void useBinaryProtocol() {
+        binaryProtocol = true;
+    }
+
+    @Override
+    public void close() {
+        queue.close(); // Writer closes the socket once the queue is drained
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return queue.getDroppedCount();
+    }
+
+    private void closeSocket() {
+        try {
+            if (!socket.isClosed()) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Error closing socket: " + e.getMessage());
+        }
+    }
+}
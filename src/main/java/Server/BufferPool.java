@@ -0,0 +1,46 @@
+package Server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Direct buffers for encoded frames, reused in power of two sizes. Direct memory is slow to allocate and
+// only freed by the GC, so released buffers are kept for the next frame, up to a limit per size
+final class BufferPool {
+    private static final int MIN_SHIFT = 8; // 256 bytes, about a chat message
+    private static final int MAX_SHIFT = 17; // 128KB, room for an encrypted 64KB file chunk
+    static final int LARGEST_SIZE = 1 << MAX_SHIFT; // Anything bigger is allocated each time
+    private static final int MAX_POOLED = 32; // Per size, so at most about 8MB sits idle
+
+    @SuppressWarnings("unchecked")
+    private static final ArrayBlockingQueue<ByteBuffer>[] pools = (ArrayBlockingQueue<ByteBuffer>[]) new ArrayBlockingQueue<?>[MAX_SHIFT - MIN_SHIFT + 1];
+
+    static {
+        for (int i = 0; i < pools.length; i++) {
+            pools[i] = new ArrayBlockingQueue<>(MAX_POOLED);
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    // An empty buffer with room for at least length bytes. Larger than the biggest size, it is never pooled
+    static ByteBuffer acquire(int length) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1));
+        if (shift > MAX_SHIFT) {
+            return ByteBuffer.allocateDirect(length);
+        }
+        ByteBuffer buffer = pools[shift - MIN_SHIFT].poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(1 << shift);
+    }
+
+    // Takes a buffer back once nothing reads from it any more
+    static void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int shift = 31 - Integer.numberOfLeadingZeros(capacity);
+        if (capacity != 1 << shift || shift < MIN_SHIFT || shift > MAX_SHIFT) {
+            return; // Not one of ours, the GC frees it
+        }
+        buffer.clear();
+        pools[shift - MIN_SHIFT].offer(buffer); // Dropped if that size is full
+    }
+}
@@ -0,0 +1,512 @@
+package Server;
+
+import Protocol.Frame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+// Chat and notices as they were relayed in every room, kept on disk across restarts. Messages are numbered
+// from 1 and appended to memory-mapped segment files named after the number of their first message. Each
+// segment has a sparse index next to it, an entry every few KB with the number, time and position of a
+// message, so a read finds its starting point by binary search. Reading one room's messages skips the
+// records of other rooms by their headers, and its last messages are looked for backwards from the end:
+//   record:      length of the room name and frame, CRC32 of everything after it, number, time (milliseconds),
+//                room name length, room name (UTF-8), encoded frame
+//   index entry: number (0 = empty), time, position in the segment
+// A full segment is closed and a new one started, and whole segments are deleted, oldest first, once the
+// log is over its size limit or their newest message is older than the age limit. A record cut short by
+// a crash fails its CRC and the log carries on from the one before it
+public final class ChatLog {
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".index";
+    private static final int RECORD_HEADER_SIZE = 26;
+    private static final int CHECKED_OFFSET = 8; // The CRC covers the record from the number on
+    private static final int INDEX_ENTRY_SIZE = 20;
+    private static final int INDEX_INTERVAL = 4096; // Bytes of records between index entries
+
+    // A record read back from the log
+    public record Entry(long number, long time, String room, Frame frame) {
+    }
+
+    private final File directory;
+    private final int segmentBytes;
+    private final long maxBytes; // Of all segments together
+    private final long maxAgeMillis;
+    private final List<Segment> segments = new ArrayList<>(); // Oldest first, the last one is appended to
+    private final ReentrantLock lock = new ReentrantLock();
+    private final CRC32 crc = new CRC32(); // Guarded by lock
+    private final List<Path> undeleted = new ArrayList<>(); // Guarded by lock, files of dropped segments still to delete
+    private long nextNumber = 1;
+
+    // One segment file and its index, both mapped at full size for as long as the segment is kept
+    private static final class Segment {
+        final long firstNumber;
+        final Path logPath;
+        final Path indexPath;
+        final MappedByteBuffer log;
+        final MappedByteBuffer index;
+        int size; // Bytes of records
+        int indexEntries;
+        int lastIndexed = -INDEX_INTERVAL; // Position of the last record indexed
+        long nextNumber;
+        long lastTime;
+
+        Segment(long firstNumber, Path logPath, Path indexPath, MappedByteBuffer log, MappedByteBuffer index) {
+            this.firstNumber = firstNumber;
+            this.logPath = logPath;
+            this.indexPath = indexPath;
+            this.log = log;
+            this.index = index;
+            this.nextNumber = firstNumber;
+        }
+
+        long indexNumber(int entry) {
+            return index.getLong(entry * INDEX_ENTRY_SIZE);
+        }
+
+        long indexTime(int entry) {
+            return index.getLong(entry * INDEX_ENTRY_SIZE + 8);
+        }
+
+        int indexPosition(int entry) {
+            return index.getInt(entry * INDEX_ENTRY_SIZE + 16);
+        }
+
+        long getFileSize() {
+            return log.capacity() + index.capacity();
+        }
+    }
+
+    public ChatLog(String directory, int segmentBytes, long maxBytes, long maxAgeMillis) throws IOException {
+        this.directory = new File(directory);
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.directory.mkdirs();
+        File[] files = this.directory.listFiles((d, name) -> name.endsWith(LOG_SUFFIX));
+        List<Long> firstNumbers = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    firstNumbers.add(Long.parseLong(file.getName().substring(0, file.getName().length() - LOG_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    System.out.println("Ignoring unexpected file in chat log: " + file.getName());
+                }
+            }
+        }
+        // An index whose segment was deleted while the index was still mapped, see enforceRetention
+        File[] indexes = this.directory.listFiles((d, name) -> name.endsWith(INDEX_SUFFIX));
+        if (indexes != null) {
+            for (File index : indexes) {
+                String name = index.getName();
+                if (!new File(this.directory, name.substring(0, name.length() - INDEX_SUFFIX.length()) + LOG_SUFFIX).exists()) {
+                    delete(index.toPath());
+                }
+            }
+        }
+        firstNumbers.sort(null);
+        for (long firstNumber : firstNumbers) {
+            Segment segment = openSegment(firstNumber);
+            recover(segment);
+            segments.add(segment);
+            nextNumber = segment.nextNumber;
+        }
+        enforceRetention();
+    }
+
+    private Segment openSegment(long firstNumber) throws IOException {
+        String name = String.format("%020d", firstNumber);
+        Path logPath = directory.toPath().resolve(name + LOG_SUFFIX);
+        Path indexPath = directory.toPath().resolve(name + INDEX_SUFFIX);
+        int indexBytes = (segmentBytes / INDEX_INTERVAL + 1) * INDEX_ENTRY_SIZE;
+        return new Segment(firstNumber, logPath, indexPath, map(logPath, segmentBytes), map(indexPath, indexBytes));
+    }
+
+    // Maps a file read-write, growing it to length. A segment written with a larger segment size keeps its size
+    private static MappedByteBuffer map(Path path, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = Math.max(channel.size(), length);
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(size, Integer.MAX_VALUE)); // Stays valid after close
+        }
+    }
+
+    // Finds where a segment's records end. Everything up to the last index entry was written before the
+    // entry, so only the records after it are checked
+    private void recover(Segment segment) {
+        int entries = 0;
+        int maxEntries = segment.index.capacity() / INDEX_ENTRY_SIZE;
+        while (entries < maxEntries && segment.indexNumber(entries) != 0) {
+            entries++;
+        }
+        int position = 0;
+        segment.indexEntries = 0;
+        if (entries > 0) {
+            segment.indexEntries = entries - 1; // The last entry is added again when its record is read
+            position = segment.indexPosition(entries - 1);
+            segment.nextNumber = segment.indexNumber(entries - 1);
+        }
+        int length;
+        while ((length = readLength(segment, position)) > 0 && segment.log.getLong(position + 8) == segment.nextNumber
+                && checkRecord(segment, position, length)) {
+            long time = segment.log.getLong(position + 16);
+            addIndexEntry(segment, position, segment.nextNumber, time);
+            segment.nextNumber++;
+            segment.lastTime = time;
+            position += RECORD_HEADER_SIZE + length;
+        }
+        segment.size = position;
+        // A damaged record left behind would otherwise be found again after the next crash
+        if (position + RECORD_HEADER_SIZE <= segment.log.capacity()) {
+            segment.log.putInt(position, 0);
+        }
+        for (int i = segment.indexEntries; i < maxEntries && segment.indexNumber(i) != 0; i++) {
+            segment.index.putLong(i * INDEX_ENTRY_SIZE, 0);
+        }
+    }
+
+    // Length of the frame in the record at position, 0 at the end of the segment
+    private static int readLength(Segment segment, int position) {
+        if (position + RECORD_HEADER_SIZE > segment.log.capacity()) {
+            return 0;
+        }
+        int length = segment.log.getInt(position);
+        return length > 0 && position + RECORD_HEADER_SIZE + length <= segment.log.capacity() ? length : 0;
+    }
+
+    private boolean checkRecord(Segment segment, int position, int length) {
+        return checksum(segment.log, position, length) == segment.log.getInt(position + 4);
+    }
+
+    private int checksum(MappedByteBuffer log, int position, int length) {
+        crc.reset();
+        crc.update(log.slice(position + CHECKED_OFFSET, RECORD_HEADER_SIZE - CHECKED_OFFSET + length));
+        return (int) crc.getValue();
+    }
+
+    private static void addIndexEntry(Segment segment, int position, long number, long time) {
+        if (position - segment.lastIndexed < INDEX_INTERVAL) {
+            return;
+        }
+        int entry = segment.indexEntries * INDEX_ENTRY_SIZE;
+        if (entry + INDEX_ENTRY_SIZE > segment.index.capacity()) {
+            return;
+        }
+        segment.index.putLong(entry + 8, time);
+        segment.index.putInt(entry + 16, position);
+        segment.index.putLong(entry, number); // Last, a non-zero number marks the entry complete
+        segment.indexEntries++;
+        segment.lastIndexed = position;
+    }
+
+    // Appends a message relayed in a room and returns its number, or 0 if it couldn't be written
+    public long append(SharedFrame frame, String room) {
+        byte[] roomName = room.getBytes(StandardCharsets.UTF_8);
+        int frameLength = frame.getFrame().getEncodedLength();
+        int length = roomName.length + frameLength;
+        if (RECORD_HEADER_SIZE + length > segmentBytes) {
+            return 0; // Larger than a whole segment, never the case for chat
+        }
+        lock.lock();
+        try {
+            Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (segment == null || segment.size + RECORD_HEADER_SIZE + length > segment.log.capacity()) {
+                segment = roll();
+                if (segment == null) {
+                    return 0;
+                }
+            }
+            // Times never go backwards, so the index can be searched by time even if the clock is set back
+            long time = Math.max(System.currentTimeMillis(), segment.lastTime);
+            long number = nextNumber++;
+            int position = segment.size;
+            MappedByteBuffer log = segment.log;
+            log.putShort(position + 24, (short) roomName.length);
+            log.put(position + RECORD_HEADER_SIZE, roomName);
+            frame.copyTo(0, log, position + RECORD_HEADER_SIZE + roomName.length, frameLength);
+            log.putLong(position + 8, number);
+            log.putLong(position + 16, time);
+            log.putInt(position + 4, checksum(log, position, length));
+            log.putInt(position, length); // Last, a non-zero length marks the record complete
+            segment.size += RECORD_HEADER_SIZE + length;
+            segment.nextNumber = nextNumber;
+            segment.lastTime = time;
+            addIndexEntry(segment, position, number, time);
+            return number;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Starts a new segment after the full one, then drops old segments if that took the log over its limits
+    private Segment roll() {
+        try {
+            Segment segment = openSegment(nextNumber);
+            segment.lastTime = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).lastTime;
+            segments.add(segment);
+            enforceRetention();
+            return segment;
+        } catch (IOException e) {
+            System.out.println("Error starting chat log segment: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Deletes the oldest segments while the log is too big or they hold nothing young enough to keep.
+    // The segment being appended to is always kept. Windows won't delete a file that is still mapped, and a
+    // dropped segment stays mapped until the GC frees its buffers, so a file that can't be deleted yet is
+    // tried again on each later call, and on the next start if the server stops first
+    public void enforceRetention() {
+        lock.lock();
+        try {
+            undeleted.removeIf(ChatLog::delete);
+            long total = 0;
+            for (Segment segment : segments) {
+                total += segment.getFileSize();
+            }
+            long cutoff = System.currentTimeMillis() - maxAgeMillis;
+            while (segments.size() > 1 && (total > maxBytes || segments.get(0).lastTime < cutoff)) {
+                Segment oldest = segments.remove(0);
+                total -= oldest.getFileSize();
+                for (Path path : new Path[] {oldest.logPath, oldest.indexPath}) {
+                    if (!delete(path)) {
+                        System.out.println("Chat log file " + path.getFileName() + " is still in use, it will be deleted later");
+                        undeleted.add(path);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True once the file is gone
+    private static boolean delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Up to max messages in a room, or in every room if room is null, starting with the one numbered from,
+    // or the oldest kept if that is gone
+    public List<Entry> readFrom(String room, long from, int max) {
+        lock.lock();
+        try {
+            byte[] roomName = encodeRoom(room);
+            List<Entry> entries = new ArrayList<>();
+            for (int i = findSegment(from); i < segments.size() && entries.size() < max; i++) {
+                Segment segment = segments.get(i);
+                int position = findPosition(segment, from, false);
+                read(segment, position, roomName, from, Long.MIN_VALUE, max, entries);
+            }
+            return entries;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Up to max messages in a room, or in every room if room is null, relayed at or after time
+    // (System.currentTimeMillis), oldest first
+    public List<Entry> readSince(String room, long time, int max) {
+        lock.lock();
+        try {
+            byte[] roomName = encodeRoom(room);
+            List<Entry> entries = new ArrayList<>();
+            int first = 0;
+            while (first < segments.size() - 1 && segments.get(first).lastTime < time) {
+                first++;
+            }
+            for (int i = first; i < segments.size() && entries.size() < max; i++) {
+                Segment segment = segments.get(i);
+                int position = findPosition(segment, time, true);
+                read(segment, position, roomName, 0, time, max, entries);
+            }
+            return entries;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The last count messages in a room, or in every room if room is null, oldest first
+    public List<Entry> readLast(String room, int count) {
+        List<Segment> kept;
+        int tailSize;
+        int tailEntries;
+        lock.lock();
+        try {
+            if (room == null) {
+                return readFrom(null, Math.max(1, nextNumber - count), count);
+            }
+            if (segments.isEmpty()) {
+                return new ArrayList<>();
+            }
+            // Records are never changed once written, so they are read without the lock, up to where the
+            // log ended now. A segment dropped meanwhile stays mapped until it is no longer used
+            kept = new ArrayList<>(segments);
+            Segment tail = kept.get(kept.size() - 1);
+            tailSize = tail.size;
+            tailEntries = tail.indexEntries;
+        } finally {
+            lock.unlock();
+        }
+        // A room's messages are spread out among the others, and records can only be read forwards, so the
+        // log is read backwards a block between two index entries at a time. Only the headers are read to
+        // find the room's records, and only the ones returned are decoded
+        byte[] roomName = encodeRoom(room);
+        List<Entry> entries = new ArrayList<>(); // Newest first
+        int[] found = new int[64];
+        for (int i = kept.size() - 1; i >= 0 && entries.size() < count; i--) {
+            Segment segment = kept.get(i);
+            boolean tail = i == kept.size() - 1;
+            int size = tail ? tailSize : segment.size;
+            int indexEntries = tail ? tailEntries : segment.indexEntries;
+            int end = size;
+            for (int block = Math.max(0, indexEntries - 1); block >= 0 && entries.size() < count; block--) {
+                int start = block == 0 ? 0 : segment.indexPosition(block);
+                int matches = 0;
+                for (int position = start; position < end; position += RECORD_HEADER_SIZE + segment.log.getInt(position)) {
+                    int roomLength = segment.log.getShort(position + 24) & 0xFFFF;
+                    if (isRoom(segment.log, position + RECORD_HEADER_SIZE, roomLength, roomName)) {
+                        if (matches == found.length) {
+                            found = Arrays.copyOf(found, matches * 2);
+                        }
+                        found[matches++] = position;
+                    }
+                }
+                for (int j = matches - 1; j >= 0 && entries.size() < count; j--) {
+                    entries.add(readEntry(segment, found[j]));
+                }
+                end = start;
+            }
+        }
+        Collections.reverse(entries);
+        return entries;
+    }
+
+    private static byte[] encodeRoom(String room) {
+        return room != null ? room.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    // Last segment whose first message is at or before number, the first segment if none is
+    private int findSegment(long number) {
+        int found = 0;
+        for (int i = 1; i < segments.size(); i++) {
+            if (segments.get(i).firstNumber <= number) {
+                found = i;
+            }
+        }
+        return found;
+    }
+
+    // Position of the last indexed record before key, a message number or a time, found by binary search.
+    // The records from there are in order by both
+    private static int findPosition(Segment segment, long key, boolean byTime) {
+        int low = 0;
+        int high = segment.indexEntries - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long value = byTime ? segment.indexTime(middle) : segment.indexNumber(middle);
+            if (value < key) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found < 0 ? 0 : segment.indexPosition(found);
+    }
+
+    // Adds the records of a segment from position on that were relayed in room (any room if null), are
+    // numbered at least fromNumber and were relayed at or after fromTime, until entries holds max
+    private static void read(Segment segment, int position, byte[] room, long fromNumber, long fromTime, int max,
+            List<Entry> entries) {
+        while (entries.size() < max && position < segment.size) {
+            long number = segment.log.getLong(position + 8);
+            long time = segment.log.getLong(position + 16);
+            int roomLength = segment.log.getShort(position + 24) & 0xFFFF;
+            if (number >= fromNumber && time >= fromTime
+                    && (room == null || isRoom(segment.log, position + RECORD_HEADER_SIZE, roomLength, room))) {
+                entries.add(readEntry(segment, position));
+            }
+            position += RECORD_HEADER_SIZE + segment.log.getInt(position);
+        }
+    }
+
+    // Decodes the record at position
+    private static Entry readEntry(Segment segment, int position) {
+        int length = segment.log.getInt(position);
+        int roomLength = segment.log.getShort(position + 24) & 0xFFFF;
+        byte[] roomName = new byte[roomLength];
+        segment.log.get(position + RECORD_HEADER_SIZE, roomName);
+        byte[] encoded = new byte[length - roomLength];
+        segment.log.get(position + RECORD_HEADER_SIZE + roomLength, encoded);
+        return new Entry(segment.log.getLong(position + 8), segment.log.getLong(position + 16),
+                new String(roomName, StandardCharsets.UTF_8), Frame.parse(encoded, 0));
+    }
+
+    // Compares a record's room name in place, so records from other rooms are skipped without copying them
+    private static boolean isRoom(MappedByteBuffer log, int position, int length, byte[] room) {
+        if (length != room.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (log.get(position + i) != room[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Writes the newest segment out to disk, on shutdown
+    public void close() {
+        lock.lock();
+        try {
+            if (!segments.isEmpty()) {
+                Segment segment = segments.get(segments.size() - 1);
+                segment.log.force();
+                segment.index.force();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getNextNumber() {
+        lock.lock();
+        try {
+            return nextNumber;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Segments kept and the disk space they take
+    public String describe() {
+        lock.lock();
+        try {
+            long total = 0;
+            for (Segment segment : segments) {
+                total += segment.getFileSize();
+            }
+            return "Chat log: " + (nextNumber - 1) + " messages written, " + segments.size() + " segments kept using "
+                    + total / (1024 * 1024) + "MB of " + maxBytes / (1024 * 1024) + "MB";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -2,23 +2,42 @@ package Server;
 
 import Authentication.UserManager;
 import Encryption.EncryptionTool;
-import FileTransfer.FileTransfer;
+import Protocol.Frame;
+import Protocol.Messages;
+import Protocol.Protocol;
 
 import java.net.*;
 import java.io.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class ClientHandler extends Thread {
-    private Socket clientSocket;
+public class ClientHandler implements Runnable {
+    private static final int MAX_LINE_LENGTH = 4 * 1024 * 1024; // Well above an encrypted 64KB file chunk
+
+    private Socket clientSocket; // Not set in NIO mode
     private SocketAddress socketAddress;
     private Server server;
-    private PrintWriter writer;
+    private ClientTransport transport;
     private String username;
-    private static UserManager userManager = new UserManager();
+    private static UserManager userManager = new UserManager(); // Thread-safe, shared by every handler
     private boolean clientWasQueued;
+    private volatile boolean authenticated; // Read by other clients' threads when they start a file transfer
+    private boolean disconnected; // Guarded by stateLock
+    private final ReentrantLock stateLock = new ReentrantLock(); // Orders a login finishing on an auth thread against a disconnect
+    private final AtomicBoolean authPending = new AtomicBoolean(); // A login or registration is being checked
+    private volatile boolean binaryProtocol; // Client sent a PROTOCOL hello, frames from now on
+    private volatile boolean compression; // Client negotiated a version that can inflate compressed frames
+    private volatile boolean acknowledged; // Client negotiated a version that counts and acknowledges chat
+    private volatile Outbox outbox; // Session of an acknowledging client, set once it has logged in
+    private volatile Room room; // Set by the server, the lobby until the client joins another
+    private long compressedBytes; // Compressed frames from this client, payload bytes on the wire
+    private long inflatedBytes; // and the same bodies before compression
+    private final TextCompat textCompat = new TextCompat(); // Converts lines from a text client
     private DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("[HH:mm:ss]");
-    
+
 
     public ClientHandler(Socket clientSocket, Server server) {
         this.clientSocket = clientSocket;
@@ -26,135 +45,451 @@ public class ClientHandler extends Thread {
         this.server = server; // The main server
         this.clientWasQueued = false;
     }
-    
+
     // Constructor for clients that were in waiting queue
     public ClientHandler(Socket clientSocket, Server server, boolean wasQueued) {
         this(clientSocket, server);
         this.clientWasQueued = wasQueued;
     }
 
+    // Constructor for connections driven by the NIO event loop, which owns the socket
+    public ClientHandler(SocketAddress socketAddress, Server server, ClientTransport transport, boolean wasQueued) {
+        this.socketAddress = socketAddress;
+        this.server = server;
+        this.transport = transport;
+        this.clientWasQueued = wasQueued;
+    }
+
+    // Blocking and virtual modes: this thread reads lines or frames and feeds them to the handler
     @Override
     public void run() {
         try {
-            // Reads text from client
-            BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            writer = new PrintWriter(clientSocket.getOutputStream(), true); // Sends text to client
-
-            // Send encryption key if this client not in queue
-            if (!clientWasQueued) {
-                System.out.println("Sending encryption key to new client");
-                writer.println(EncryptionTool.getKeyAsString());
-            } else {
-                System.out.println("Client queued");
-            }
+            // Lines are read straight off the stream so the switch to frames can happen after any of them
+            DataInputStream input = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+            BlockingTransport blockingTransport = new BlockingTransport(clientSocket, server.createOutboundQueue());
+            server.startThread(blockingTransport); // Writer thread sends text to client
+            transport = blockingTransport;
 
-            // Handles authentication 
-            boolean authenticated = false;
-            while (!authenticated) {
-                String encryptedAuthMessage = reader.readLine();
-                if (encryptedAuthMessage == null) {
-                    System.out.println("Client disconnected during authentication");
-                    break; // Client disconnected
-                }
-                
-                try {
-                    String authMessage = EncryptionTool.decrypt(encryptedAuthMessage);
-                    System.out.println("Received auth message: " + authMessage);
-                    String[] parts = authMessage.split(":");
-                    
-                    if (parts.length >= 3) {
-                        String authType = parts[0];
-                        String username = parts[1];
-                        String password = parts[2];
-                        
-                        if (authType.equals("AUTH_LOGIN")) {
-                            if (userManager.authenticateUser(username, password)) {
-                                authenticated = true;
-                                this.username = username;
-                                writer.println(EncryptionTool.encrypt("AUTH_SUCCESS"));
-                                System.out.println("Login successful for: " + username);
-                            } else {
-                                writer.println(EncryptionTool.encrypt("AUTH_FAILURE"));
-                                System.out.println("Login failed for: " + username);
-                            }
-                        } else if (authType.equals("AUTH_REGISTER")) {
-                            if (userManager.registerUser(username, password)) {
-                                authenticated = true;
-                                this.username = username;
-                                writer.println(EncryptionTool.encrypt("AUTH_SUCCESS"));
-                                System.out.println("Registration successful for: " + username);
-                            } else {
-                                writer.println(EncryptionTool.encrypt("AUTH_FAILURE"));
-                                System.out.println("Registration failed for: " + username);
-                            }
-                        }
-                    } else {
-                        System.out.println("Invalid auth message format: " + authMessage);
+            onConnected();
+
+            while (true) {
+                if (binaryProtocol) {
+                    Frame frame = Frame.readFrom(input);
+                    if (frame == null) {
+                        break;
+                    }
+                    handleFrame(frame);
+                } else {
+                    String line = Protocol.readLine(input, MAX_LINE_LENGTH);
+                    if (line == null) {
+                        break;
                     }
-                } catch (Exception e) {
-                    System.err.println("Error during authentication: " + e.getMessage());
-                    e.printStackTrace();
+                    handleLine(line);
                 }
             }
-            
-            if (!authenticated) {
-                clientSocket.close();
-                server.removeClient(this);
-                return;
+        } catch (IOException e) {
+            // Also how a slow client is dropped, its socket is closed under this thread
+            System.out.println("Error handling client: " + e.getMessage());
+        } catch (Exception e) {
+            System.out.println("Unexpected error: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            // However the connection ended, its session is kept for a resume and a login still being checked is dropped
+            onDisconnected();
+        }
+    }
+
+    // Called once the client has been admitted to the server
+    public void onConnected() {
+        // Send encryption key if this client not in queue
+        if (!clientWasQueued) {
+            System.out.println("Sending encryption key to new client");
+            transport.sendLine(EncryptionTool.getKeyAsString());
+        } else {
+            System.out.println("Client queued");
+        }
+    }
+
+    // Handles one line received from a client on the text protocol
+    public void handleLine(String line) {
+        if (!authenticated && line.startsWith(Protocol.HELLO)) {
+            negotiateProtocol(line);
+            return;
+        }
+
+        Frame frame;
+        try {
+            frame = textCompat.fromTextLine(line);
+        } catch (Exception e) {
+            System.err.println("Error decoding message: " + e.getMessage());
+            return;
+        }
+        if (frame == null) {
+            System.out.println("Invalid message from " + socketAddress);
+            return;
+        }
+        handleFrame(frame);
+    }
+
+    // Handles one message, whichever protocol it arrived on
+    public void handleFrame(Frame frame) {
+        boolean loggedIn = authenticated;
+        if (!loggedIn) {
+            // A login finished on an auth thread sends its result before marking the client logged in, both
+            // under stateLock, so a message the client sent as soon as it saw the result waits for that here
+            stateLock.lock();
+            try {
+                loggedIn = authenticated;
+            } finally {
+                stateLock.unlock();
             }
+        }
+        if (!loggedIn) {
+            handleAuthMessage(frame);
+        } else {
+            handleChatMessage(frame);
+        }
+    }
 
-            String message;
-            while ((message = reader.readLine()) != null) {
-                try {
-                    String decryptedMessage = EncryptionTool.decrypt(message);
-                    
-                    // Check if this is a file transfer message
-                    if (decryptedMessage.startsWith(FileTransfer.FILE_START)) {
-                        // File start notification, add a system message
-                        String[] parts = decryptedMessage.split(":", 3);
-                        if (parts.length >= 3) {
-                            String fileName = parts[1];
-                            String timestamp = LocalDateTime.now().format(timeFormatter);
-                            String fileNotification = timestamp + " Server: " + username + " is sending file: " + fileName;
-                            
-                            server.broadcast(EncryptionTool.encrypt(fileNotification), null);
-                        }
-                    }
-                    
-                    // Pass the message along, whether it's a chat message or file transfer
-                    System.out.println(socketAddress + " (" + username + ") sent a message/file data");
-                    server.broadcast(message, socketAddress);
-                } catch (Exception e) {
-                    System.err.println("Error processing message: " + e.getMessage());
-                }
+    // Client asked for binary frames, agree on the highest version we both speak
+    private void negotiateProtocol(String hello) {
+        int version = Math.min(Protocol.parseVersion(hello, Protocol.HELLO), Protocol.VERSION);
+        if (version < 1) {
+            System.out.println("Invalid protocol hello from " + socketAddress + ": " + hello);
+            return;
+        }
+        transport.sendLine(Protocol.createHelloReply(version));
+        transport.useBinaryProtocol();
+        compression = version >= Protocol.COMPRESSION_VERSION;
+        acknowledged = version >= Protocol.ACK_VERSION;
+        binaryProtocol = true;
+        System.out.println(socketAddress + " switched to binary protocol version " + version);
+    }
+
+    // Called once when the client's connection has gone away
+    public void onDisconnected() {
+        stateLock.lock();
+        try {
+            if (disconnected) {
+                return;
             }
+            disconnected = true;
+        } finally {
+            stateLock.unlock();
+        }
 
+        if (!authenticated) {
+            System.out.println("Client disconnected during authentication");
+        } else {
             // Print info when client disconnects
             System.out.println(socketAddress + " (" + username + ") has closed the connection");
-            clientSocket.close();
-            server.removeClient(this);
-        } catch (IOException e) {
-            System.out.println("Error handling client: " + e.getMessage());
-            try {
-                clientSocket.close();
-            } catch (IOException ex) {
-                System.out.println("Error closing socket: " + ex.getMessage());
+        }
+        Outbox session = outbox;
+        if (session != null) {
+            int kept = session.detach(this);
+            if (kept >= 0) {
+                server.sessionDetached(session); // Keeps collecting chat until the client resumes or it expires
+            }
+            if (kept > 0) {
+                long evicted = session.getEvictedCount();
+                System.out.println("Keeping " + kept + " unacknowledged messages for " + username
+                        + (evicted > 0 ? ", " + evicted + " older ones didn't fit" : ""));
+            }
+        }
+        if (transport != null && transport.getDroppedCount() > 0) {
+            System.out.println(socketAddress + " missed " + transport.getDroppedCount() + " messages while its queue was full");
+        }
+        if (inflatedBytes > 0) {
+            System.out.println(socketAddress + " compressed " + inflatedBytes + " bytes of messages to " + compressedBytes
+                    + " (" + (compressedBytes * 100 / inflatedBytes) + "%)");
+        }
+        closeSocket();
+        server.removeClient(this);
+    }
+
+    // Hands login and registration messages to the auth service, which checks them on its own threads.
+    // A client over its limits, or with a check already running, is told to retry straight away
+    private void handleAuthMessage(Frame frame) {
+        if (frame.getType() == Protocol.AUTH_RESUME) {
+            resumeSession(frame);
+            return;
+        }
+        if (frame.getType() != Protocol.AUTH_LOGIN && frame.getType() != Protocol.AUTH_REGISTER) {
+            System.out.println("Invalid auth message type: " + frame.getType());
+            return;
+        }
+        if (!authPending.compareAndSet(false, true)) {
+            send(Messages.authRetry(1));
+            return;
+        }
+        InetAddress address = socketAddress instanceof InetSocketAddress ? ((InetSocketAddress) socketAddress).getAddress() : null;
+        int retrySeconds = server.getAuthService().submit(address, () -> checkCredentials(frame));
+        if (retrySeconds > 0) {
+            authPending.set(false);
+            send(Messages.authRetry(retrySeconds));
+            System.out.println("Auth attempt from " + socketAddress + " turned away, retry in " + retrySeconds + "s");
+        }
+    }
+
+    // Runs on an auth thread
+    private void checkCredentials(Frame frame) {
+        try {
+            byte[] body = frame.open();
+            String username = Messages.readUsername(body, body.length);
+            String password = Messages.readPassword(body, body.length);
+            System.out.println("Received auth message: " + (frame.getType() == Protocol.AUTH_LOGIN ? "login" : "register") + " for " + username);
+
+            if (frame.getType() == Protocol.AUTH_LOGIN) {
+                if (userManager.authenticateUser(username, password)) {
+                    completeLogin(username, null, 0, true);
+                    System.out.println("Login successful for: " + username);
+                } else {
+                    send(Messages.authResult(false));
+                    System.out.println("Login failed for: " + username);
+                }
+            } else {
+                if (userManager.registerUser(username, password)) {
+                    completeLogin(username, null, 0, true);
+                    System.out.println("Registration successful for: " + username);
+                } else {
+                    send(Messages.authResult(false));
+                    System.out.println("Registration failed for: " + username);
+                }
             }
-            server.removeClient(this);
         } catch (Exception e) {
-            System.out.println("Unexpected error: " + e.getMessage());
+            System.err.println("Error during authentication: " + e.getMessage());
             e.printStackTrace();
-            server.removeClient(this);
+        } finally {
+            authPending.set(false);
+        }
+    }
+
+    // A reconnecting client showed the token from its last connection. Checking it is one HMAC, so it is
+    // done right here without the auth pool or a user lookup
+    private void resumeSession(Frame frame) {
+        if (authPending.get()) {
+            send(Messages.authRetry(1));
+            return;
+        }
+        SessionTokens.Claim claim;
+        try {
+            claim = server.getSessionTokens().verify(frame.open());
+        } catch (Exception e) {
+            claim = null;
+        }
+        if (claim == null) {
+            send(Messages.authResult(false));
+            System.out.println("Session resume from " + socketAddress + " rejected");
+            return;
+        }
+        Outbox session = acknowledged ? server.findSession(claim.sessionId()) : null;
+        completeLogin(claim.username(), session, Messages.readSequence(frame), false);
+        System.out.println("Session resumed for: " + claim.username());
+    }
+
+    // Marks the client logged in, unless it disconnected while its credentials were being checked.
+    // An acknowledging client takes over session, or starts a new one if there is none, and is sent
+    // whatever it hasn't had from it after lastReceived. A new session starts with the recent chat
+    // if replayHistory is set, for a client that logged in with its password
+    private void completeLogin(String username, Outbox session, long lastReceived, boolean replayHistory) {
+        stateLock.lock();
+        try {
+            if (disconnected) {
+                return;
+            }
+            // Result goes first, so nothing relayed to a logged in client can arrive before it
+            send(Messages.authResult(true));
+            this.username = username;
+            if (acknowledged) {
+                if (session != null) {
+                    // Back into the room before taking the session over, so it never gets another room's chat.
+                    // Until then the session itself collects the room's chat
+                    server.joinRoom(this, session.getRoom());
+                }
+                if (session != null && session.attach(this, transport, lastReceived)) {
+                    outbox = session;
+                } else {
+                    // Set before it starts, so a broadcast arriving just after the start isn't dropped
+                    session = server.openSession();
+                    session.setRoom(room.getName());
+                    outbox = session;
+                    server.startSession(session, this, transport, replayHistory);
+                }
+                server.sessionAttached(session);
+            }
+            authenticated = true;
+            sendSessionToken();
+            server.clientAuthenticated(this);
+        } finally {
+            stateLock.unlock();
         }
     }
 
-    // Send message to this client
-    public void send(String message) {
-        if (writer != null) {
-            writer.println(message);
+    // Gives a logged in client a fresh token to resume with. Text clients can't resume, and would
+    // show the token as a chat line
+    void sendSessionToken() {
+        if (!binaryProtocol || !authenticated) {
+            return;
+        }
+        try {
+            Outbox session = outbox;
+            send(Messages.sessionToken(server.getSessionTokens().issue(username, session != null ? session.getId() : 0)));
+        } catch (Exception e) {
+            System.out.println("Error sending session token to " + socketAddress + ": " + e.getMessage());
+        }
+    }
+
+    // Relays a chat message or file transfer message to the other clients
+    private void handleChatMessage(Frame frame) {
+        try {
+            // Routing only looks at the plain header, the payload is passed on untouched
+            byte type = frame.getType();
+            if (frame.isCompressed()) {
+                compressedBytes += frame.getPayloadLength();
+                inflatedBytes += frame.getInflatedLength();
+            }
+            if (type == Protocol.MESSAGE_ACK) {
+                Outbox session = outbox;
+                if (session != null) {
+                    session.acknowledge(this, Messages.readSequence(frame));
+                }
+                return;
+            }
+            if (type == Protocol.ROOM_JOIN || type == Protocol.ROOM_LEAVE) {
+                changeRoom(type == Protocol.ROOM_JOIN ? Messages.readRoom(frame).trim().toLowerCase(Locale.ROOT) : Room.LOBBY);
+                return;
+            }
+            if (type == Protocol.FILE_RESUME) {
+                // The spool sends this client only the chunks it is missing
+                server.resumeReply(Messages.readTransferId(frame), this, Messages.readChunkBitmap(frame));
+                return;
+            }
+
+            System.out.println(socketAddress + " (" + username + ") sent a message/file data");
+            if (type == Protocol.FILE_START) {
+                // File start notification, add a system message
+                String fileName = Messages.readFileName(frame);
+                String timestamp = LocalDateTime.now().format(timeFormatter);
+                String fileNotification = timestamp + " Server: " + username + " is sending file: " + fileName;
+
+                server.broadcast(room, Messages.notice(fileNotification), null);
+            }
+
+            // Pass the message along, file transfers through the spool
+            if (Protocol.isFileMessage(type)) {
+                server.relayFileMessage(frame, this);
+            } else {
+                server.broadcast(room, frame, socketAddress);
+            }
+
+            // Chunks are paced by acks, the sender gets a credit back once this one is spooled or queued.
+            // Text clients pace themselves and wouldn't understand an ack
+            if (frame.getType() == Protocol.FILE_CHUNK && binaryProtocol) {
+                send(Messages.fileAck(Messages.readTransferId(frame), Messages.readChunkIndex(frame)));
+            }
+        } catch (Exception e) {
+            System.err.println("Error processing message: " + e.getMessage());
         }
     }
 
+    // Leaves the current room for the one called name. Both rooms are told, and so is the client
+    private void changeRoom(String name) {
+        String timestamp = LocalDateTime.now().format(timeFormatter);
+        if (!Room.isValidName(name)) {
+            send(Messages.notice(timestamp + " Server: Room names are 1 to " + Room.MAX_NAME_LENGTH + " letters, digits, '-' or '_'"));
+            return;
+        }
+        Room left = room;
+        if (left.getName().equals(name)) {
+            send(Messages.notice(timestamp + " Server: You are already in " + name));
+            return;
+        }
+        server.broadcast(left, Messages.notice(timestamp + " Server: " + username + " has left " + left.getName()), socketAddress);
+        Room joined = server.joinRoom(this, name);
+        Outbox session = outbox;
+        if (session != null) {
+            session.setRoom(name);
+        }
+        int others = joined.snapshot().length - 1;
+        send(Messages.notice(timestamp + " Server: You are now in " + name + " with " + others + (others == 1 ? " other user" : " other users")));
+        server.broadcast(joined, Messages.notice(timestamp + " Server: " + username + " has joined " + name), socketAddress);
+        System.out.println(socketAddress + " (" + username + ") moved from " + left.getName() + " to " + name);
+    }
+
+    // Send message to this client, only queues it so a slow client never blocks the caller
+    public void send(Frame message) {
+        send(message, false);
+    }
+
+    // Send message to this client, fileData lets the overflow policy drop file chunks first
+    public void send(Frame message, boolean fileData) {
+        SharedFrame shared = new SharedFrame(message);
+        send(shared, fileData);
+        shared.release();
+    }
+
+    // Send a message that other clients may get too, it is encoded once for all of them
+    public void send(SharedFrame message, boolean fileData) {
+        if (transport == null) {
+            return;
+        }
+        if (acknowledged && Protocol.isSequenced(message.getFrame().getType())) {
+            // Numbered through the session, which also keeps it until the client acknowledges it.
+            // Nothing is numbered before the login completes, the client isn't counting yet
+            Outbox session = outbox;
+            if (session != null) {
+                session.send(message);
+            }
+            return;
+        }
+        if (message.getFrame().isCompressed() && binaryProtocol && !compression) {
+            // Text clients get theirs inflated when the line is made, older binary clients need it resealed
+            SharedFrame resealed;
+            try {
+                resealed = new SharedFrame(message.getFrame().withoutCompression());
+            } catch (Exception e) {
+                System.out.println("Error decompressing message for " + socketAddress + ": " + e.getMessage());
+                return;
+            }
+            transport.sendFrame(resealed, fileData);
+            resealed.release();
+            return;
+        }
+        transport.sendFrame(message, fileData);
+    }
+
+    Room getRoom() {
+        return room;
+    }
+
+    void setRoom(Room room) {
+        this.room = room;
+    }
+
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    public boolean usesBinaryProtocol() {
+        return binaryProtocol;
+    }
+
+    // Send a chunk straight from the file spool
+    public void sendRegion(FileSpool.Region region) {
+        if (transport == null) {
+            return;
+        }
+        if (region.isCompressed() && binaryProtocol && !compression) {
+            try {
+                send(region.readFrame(), true);
+            } catch (IOException e) {
+                System.out.println("Error reading spooled chunk for " + socketAddress + ": " + e.getMessage());
+            }
+            return;
+        }
+        transport.sendRegion(region);
+    }
+
     // Getter for address
     public SocketAddress getSocketAddress() {
         return socketAddress;
@@ -167,12 +502,16 @@ public class ClientHandler extends Thread {
 
     // Closes the client socket
     public void closeSocket() {
-        try {
-            if (clientSocket != null && !clientSocket.isClosed()) {
-                clientSocket.close();
+        if (transport != null) {
+            transport.close();
+        } else {
+            try {
+                if (clientSocket != null && !clientSocket.isClosed()) {
+                    clientSocket.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error closing socket: " + e.getMessage());
             }
-        } catch (IOException e) {
-            System.out.println("Error closing socket: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,94 @@
+package Server;
+
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Connected clients: a copy-on-write array for lock-free broadcast plus hash indexes for lookups
+public class ClientRegistry {
+    private static final ClientHandler[] EMPTY = new ClientHandler[0];
+
+    private volatile ClientHandler[] snapshot = EMPTY; // Never modified once published
+    private final ConcurrentHashMap<SocketAddress, ClientHandler> byAddress = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<ClientHandler>> byUsername = new ConcurrentHashMap<>(); // A user can be logged in more than once
+    private final ReentrantLock writeLock = new ReentrantLock(); // Only joins and leaves take it
+
+    public void add(ClientHandler client) {
+        writeLock.lock();
+        try {
+            if (byAddress.putIfAbsent(client.getSocketAddress(), client) != null) {
+                return;
+            }
+            ClientHandler[] current = snapshot;
+            ClientHandler[] next = new ClientHandler[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = client;
+            snapshot = next;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Returns false if the client was not registered
+    public boolean remove(ClientHandler client) {
+        writeLock.lock();
+        try {
+            if (!byAddress.remove(client.getSocketAddress(), client)) {
+                return false;
+            }
+            ClientHandler[] current = snapshot;
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == client) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index >= 0) {
+                ClientHandler[] next = new ClientHandler[current.length - 1];
+                System.arraycopy(current, 0, next, 0, index);
+                System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+                snapshot = next;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+
+        String username = client.getUsername();
+        if (username != null) {
+            byUsername.computeIfPresent(username, (name, handlers) -> {
+                handlers.remove(client);
+                return handlers.isEmpty() ? null : handlers;
+            });
+        }
+        return true;
+    }
+
+    // Indexes a client by name once it has logged in
+    public void indexUsername(ClientHandler client) {
+        if (byAddress.get(client.getSocketAddress()) != client) {
+            return; // Already gone
+        }
+        byUsername.computeIfAbsent(client.getUsername(), name -> ConcurrentHashMap.newKeySet()).add(client);
+    }
+
+    // Current clients, safe to iterate without locking because the array is never changed
+    public ClientHandler[] snapshot() {
+        return snapshot;
+    }
+
+    public ClientHandler getByAddress(SocketAddress address) {
+        return byAddress.get(address);
+    }
+
+    public Set<ClientHandler> getByUsername(String username) {
+        Set<ClientHandler> handlers = byUsername.get(username);
+        return handlers == null ? Collections.emptySet() : Collections.unmodifiableSet(handlers);
+    }
+
+    public int size() {
+        return snapshot.length;
+    }
+}
@@ -0,0 +1,31 @@
+package Server;
+
+import java.nio.ByteBuffer;
+
+// Outbound side of a client connection, implemented once per server mode
+public interface ClientTransport {
+    // Queues a plain text line, used for the key and handshake before the protocol is settled
+    void sendLine(String line);
+
+    // Queues a message, fileData marks relayed file transfer traffic. The queue takes its own reference
+    void sendFrame(SharedFrame frame, boolean fileData);
+
+    // Queues a numbered chat or notice. The client counts these, so the queue never drops one to make room
+    void sendSequenced(SharedFrame frame);
+
+    // Queues frames already encoded back to back in a pooled buffer, which is given back once written.
+    // Only for binary clients, they go out as they are in one write
+    void sendEncoded(ByteBuffer encoded);
+
+    // Queues a chunk frame that is copied from the file spool when its turn comes
+    void sendRegion(FileSpool.Region region);
+
+    // Frames queued from now on go out as binary instead of Base64 lines
+    void useBinaryProtocol();
+
+    // Closes the connection once anything already queued has been written
+    void close();
+
+    // Number of queued messages discarded because the client was too slow
+    long getDroppedCount();
+}
@@ -1,14 +1,18 @@
 package Server;
 
-import Encryption.EncryptionTool;
+import Protocol.Frame;
+import Protocol.Messages;
+import Protocol.Protocol;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
+import java.util.Locale;
 import java.util.Scanner;
 
-public class ExitHandler extends Thread {
+public class ExitHandler implements Runnable {
     private Server server;
+    private static final int MAX_LOG_LINES = 10000; // Most messages the log command prints
     private DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("[HH:mm:ss]");
     
     public ExitHandler(Server server) {
@@ -20,32 +24,99 @@ public class ExitHandler extends Thread {
         Scanner scanner = new Scanner(System.in); // Scanner object that reads from standard input
         String input;
         
-        System.out.println("Type 'exit' to shut down the server");
+        System.out.println("Type 'exit' to shut down the server, 'stats' to see connection and login figures, 'capacity <n>' to change the connection limit, "
+                + "'log <n>' to see the last n chat messages or 'log since <minutes>' to see those from the last few minutes, "
+                + "followed by a room name to see only that room's");
         
-        while (true) {
+        // Stops quietly if standard input is closed, e.g. when run in the background
+        while (scanner.hasNextLine()) {
             input = scanner.nextLine();
             if ("exit".equalsIgnoreCase(input)) {
                 System.out.println("Shutting down server...");
                 
-                // Close all client connections
+                // Close all client connections, they all get the same goodbye
                 List<ClientHandler> clients = server.getClients();
+                String timestamp = LocalDateTime.now().format(timeFormatter); // Adds timestamp to shutdown message
+                SharedFrame goodbye = new SharedFrame(Messages.notice(timestamp + " Server: The server is shutting down. Goodbye!"));
                 for (ClientHandler client : clients) {
                     try {
-                        // Adds timestamp to shutdown message
-                        String timestamp = LocalDateTime.now().format(timeFormatter);
-                        client.send(EncryptionTool.encrypt(timestamp + " Server: The server is shutting down. Goodbye!"));
+                        client.send(goodbye, false);
                         client.closeSocket();
                     } catch (Exception e) {
                         System.out.println("Error notifying client of shutdown: " + e.getMessage());
                     }
                 }
+                goodbye.release();
                 
                 // Shut down the server
                 server.shutdown();
                 break;
+            } else if ("stats".equalsIgnoreCase(input)) {
+                System.out.println(server.getConnectionSummary());
+                System.out.println(server.getAuthService().describe());
+                System.out.println(server.describeHistory());
+                System.out.println(server.describeChatLog());
+                System.out.println(server.describeRooms());
+            } else if (input.toLowerCase(Locale.ROOT).startsWith("log ")) {
+                showChatLog(input.substring("log ".length()).trim().toLowerCase(Locale.ROOT));
+            } else if (input.toLowerCase(Locale.ROOT).startsWith("capacity ")) {
+                try {
+                    int capacity = Integer.parseInt(input.substring("capacity ".length()).trim());
+                    if (capacity < 1) {
+                        System.out.println("At least one connection must be allowed");
+                    } else {
+                        server.setCapacity(capacity);
+                    }
+                } catch (NumberFormatException e) {
+                    System.out.println("Usage: capacity <number of users>");
+                }
             }
         }
         
         scanner.close();
     }
-}
\ No newline at end of file
+
+    // Prints chat from the log, "<n>" for the last n messages or "since <minutes>", from every room
+    // unless a room name follows
+    private void showChatLog(String arguments) {
+        String[] parts = arguments.split("\\s+");
+        boolean since = "since".equals(parts[0]);
+        int roomPart = since ? 2 : 1;
+        if (parts.length < roomPart || parts.length > roomPart + 1) {
+            System.out.println("Usage: log <number of messages> [room] or log since <minutes> [room]");
+            return;
+        }
+        String room = parts.length > roomPart ? parts[roomPart] : null;
+        List<ChatLog.Entry> entries;
+        try {
+            if (since) {
+                long minutes = Long.parseLong(parts[1]);
+                entries = server.readChatLogSince(room, System.currentTimeMillis() - minutes * 60_000, MAX_LOG_LINES);
+            } else {
+                entries = server.readChatLog(room, Math.min(Integer.parseInt(parts[0]), MAX_LOG_LINES));
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Usage: log <number of messages> [room] or log since <minutes> [room]");
+            return;
+        }
+        if (entries == null) {
+            System.out.println("Chat log is turned off");
+            return;
+        }
+        for (ChatLog.Entry entry : entries) {
+            try {
+                Frame frame = entry.frame();
+                String prefix = entry.number() + " " + (room == null ? entry.room() + " " : "");
+                if (frame.getType() == Protocol.NOTICE) {
+                    System.out.println(prefix + Messages.readNotice(frame));
+                } else {
+                    byte[] body = frame.open();
+                    System.out.println(prefix + Messages.readText(body, body.length));
+                }
+            } catch (Exception e) {
+                System.out.println(entry.number() + " could not be read: " + e.getMessage());
+            }
+        }
+        System.out.println(entries.size() + " messages");
+    }
+}
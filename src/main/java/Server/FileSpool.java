@@ -0,0 +1,607 @@
+package Server;
+
+import Encryption.EncryptionTool;
+import FileTransfer.FileTransfer;
+import Protocol.Frame;
+import Protocol.Messages;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Store-and-forward relay for file transfers. The sender's chunk frames are written once to a spool file,
+// then each receiver gets them straight from disk at its own pace, so a slow receiver never holds up the
+// sender, and clients that log in a little later can still get files sent before they arrived.
+// Transfer IDs come from the file content, so finished files kept here double as a cache: the same content
+// sent again, under any name, is answered with every chunk already stored and only the end message follows.
+// Only the client sending a file can add to it, end it or cancel it, and a file with a content hash is only
+// kept once what was spooled matches the hash. Files still being sent have limits of their own, so clients
+// that start transfers and never finish them can't fill the disk
+public class FileSpool {
+    private static final String SPOOL_DIR = "spool";
+    private static final String SPOOL_SUFFIX = ".spool";
+    private static final long MAX_FILE_SIZE = 64L * 1024 * 1024; // Bigger files are relayed the old way
+    private static final int MAX_KEPT_FILES = 16; // Finished or abandoned files kept on disk
+    private static final long MAX_KEPT_BYTES = 256L * 1024 * 1024;
+    private static final int MAX_SENDING_FILES = 32; // Files being sent to the spool at once, by everyone
+    private static final int MAX_SENDING_PER_CLIENT = 4;
+    private static final long MAX_SENDING_BYTES = 256L * 1024 * 1024;
+    private static final long KEEP_MILLIS = 10 * 60 * 1000; // How long new clients are offered a finished file
+
+    private final ConcurrentHashMap<Long, SpooledFile> files = new ConcurrentHashMap<>();
+    private final ReentrantLock spaceLock = new ReentrantLock(); // Guards the kept and sending files and their sizes
+    private final ArrayDeque<SpooledFile> kept = new ArrayDeque<>(); // Files nobody is sending any more, oldest first
+    private long keptBytes;
+    private final Set<SpooledFile> sending = new HashSet<>(); // Files a client is sending
+    private long sendingBytes;
+
+    // Where one chunk frame sits in a spool file, queued for a client instead of the frame itself
+    public static final class Region {
+        private final FileChannel channel;
+        private final long position;
+        private final int length;
+        private final boolean compressed;
+
+        private Region(FileChannel channel, long position, int length, boolean compressed) {
+            this.channel = channel;
+            this.position = position;
+            this.length = length;
+            this.compressed = compressed;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        // Clients that didn't negotiate compression are sent a converted copy instead
+        public boolean isCompressed() {
+            return compressed;
+        }
+
+        // False once the file has been removed from the spool, the entry is then skipped
+        public boolean isAvailable() {
+            return channel.isOpen();
+        }
+
+        // Copies bytes from offset onwards to target, the kernel does the copy when target is a socket.
+        // Returns how many bytes were written, which can be fewer on a non-blocking socket
+        public long transferTo(long offset, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position + offset, length - offset, target);
+        }
+
+        // Reads the frame back, for clients on the text protocol that need it converted
+        public Frame readFrame() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Spool file is shorter than expected");
+                }
+            }
+            return Frame.parse(buffer.array(), 0);
+        }
+    }
+
+    // One file as the server has it so far, all fields guarded by lock
+    private static class SpooledFile {
+        final long transferId;
+        final long fileSize;
+        final byte[] contentHash; // Null if the first sender didn't give one
+        final int totalChunks;
+        Frame start; // The latest one, so receivers see the name it was last sent under
+        final Path path;
+        final FileChannel channel;
+        final Region[] chunks; // Null until that chunk has arrived
+        final BitSet stored;
+        final Map<ClientHandler, Delivery> deliveries = new HashMap<>(); // Receivers still being sent this file
+        final Set<String> deliveredTo = new HashSet<>(); // Users that already have it, skipped when they log in again
+        final ReentrantLock lock = new ReentrantLock();
+        ClientHandler sender; // The only client whose chunks, end or error are accepted, null while nobody is sending
+        final Set<String> rooms = new HashSet<>(); // Where it was shared, only members of these rooms are sent it
+        Frame end; // Null until the sender has finished
+        final MessageDigest digest; // Content hashed in order as chunks arrive, null without a content hash
+        int hashedChunks; // Chunks before this one are in the digest
+        boolean verified; // Every chunk is here and matches the content hash
+        long appendPosition;
+        long keptSince;
+        ClientHandler uploader; // Guarded by spaceLock, who the file counts against while it is being sent
+
+        SpooledFile(long transferId, long fileSize, byte[] contentHash, Frame start, Path path, FileChannel channel)
+                throws NoSuchAlgorithmException {
+            this.transferId = transferId;
+            this.fileSize = fileSize;
+            this.contentHash = contentHash;
+            this.digest = contentHash != null ? MessageDigest.getInstance("SHA-256") : null;
+            this.totalChunks = (int) ((fileSize + FileTransfer.CHUNK_SIZE - 1) / FileTransfer.CHUNK_SIZE);
+            this.start = start;
+            this.path = path;
+            this.channel = channel;
+            this.chunks = new Region[totalChunks];
+            this.stored = new BitSet(totalChunks);
+        }
+    }
+
+    // One receiver's progress through a file
+    private static class Delivery {
+        final BitSet sent = new BitSet(); // Chunks queued for the receiver or that it already had
+        boolean ready; // Binary receivers first say which chunks they have, text receivers get everything
+    }
+
+    public FileSpool() {
+        // Spool files don't outlive the server, anything left over is from a previous run
+        File dir = new File(SPOOL_DIR);
+        dir.mkdirs();
+        File[] leftovers = dir.listFiles((d, name) -> name.endsWith(SPOOL_SUFFIX));
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                leftover.delete();
+            }
+        }
+    }
+
+    // Starts or restarts spooling a transfer and offers it to every logged in member of the sender's room.
+    // A file someone else is still sending is only offered, the sender is told it has nothing to send.
+    // Returns false if the file isn't spooled and should be relayed directly
+    boolean start(Frame frame, ClientHandler sender, Room room) {
+        long transferId = Messages.readTransferId(frame);
+        long fileSize = Messages.readFileSize(frame);
+        if (fileSize < 0 || fileSize > MAX_FILE_SIZE) {
+            return false;
+        }
+        byte[] contentHash = Messages.readContentHash(frame);
+        if (contentHash != null && ByteBuffer.wrap(contentHash).getLong() != transferId) {
+            refuse(sender, transferId, "Transfer ID doesn't match the content hash");
+            return true;
+        }
+
+        SpooledFile file = files.get(transferId);
+        // Same ID but a different file, the one already here stays, whoever is sending it. Without a content
+        // hash there is no telling whether it is the same file, so it is never taken to be
+        if (file != null && (contentHash == null || file.fileSize != fileSize || !Arrays.equals(file.contentHash, contentHash))) {
+            refuse(sender, transferId, "Transfer ID is already used by another file");
+            return true;
+        }
+        if (file == null) {
+            try {
+                Path path = Paths.get(SPOOL_DIR, Long.toHexString(transferId) + SPOOL_SUFFIX);
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                file = new SpooledFile(transferId, fileSize, contentHash, frame, path, channel);
+            } catch (IOException | NoSuchAlgorithmException e) {
+                System.out.println("Error creating spool file: " + e.getMessage());
+                return false;
+            }
+            SpooledFile existing = files.putIfAbsent(transferId, file);
+            if (existing != null) {
+                // Another client started the same ID at the same moment, it keeps it
+                discard(file);
+                refuse(sender, transferId, "Transfer ID is already being sent");
+                return true;
+            }
+            String full = startSending(file, sender);
+            if (full != null) {
+                discard(file);
+                refuse(sender, transferId, full);
+                return true;
+            }
+        }
+
+        file.lock.lock();
+        try {
+            ClientHandler owner = file.sender;
+            // The same user on a new connection carries on with its own upload
+            boolean sentByOther = owner != null && owner != sender
+                    && (owner.getUsername() == null || !owner.getUsername().equals(sender.getUsername()));
+            if (!sentByOther) {
+                // Being sent again, after the sender dropped out or by someone else
+                String full = startSending(file, sender);
+                if (full != null) {
+                    refuse(sender, transferId, full);
+                    return true;
+                }
+                file.start = frame;
+                if (file.end != null) {
+                    file.end = Messages.fileEnd(transferId, Messages.readFileName(frame));
+                }
+                file.sender = sender;
+            }
+            file.rooms.add(room.getName());
+            if (sender.getUsername() != null) {
+                file.deliveredTo.add(sender.getUsername());
+            }
+            for (ClientHandler client : room.snapshot()) {
+                if (client != sender && client.isAuthenticated() && !file.deliveries.containsKey(client)) {
+                    startDelivery(file, client);
+                }
+            }
+            // The sender only has to send what the spool doesn't have yet, and nothing at all if the
+            // spool is getting it from someone else
+            if (sender.usesBinaryProtocol()) {
+                BitSet have = (BitSet) file.stored.clone();
+                if (sentByOther) {
+                    have.set(0, file.totalChunks);
+                }
+                sender.send(Messages.fileResume(transferId, have));
+            }
+        } finally {
+            file.lock.unlock();
+        }
+        return true;
+    }
+
+    // Counts a file a client is sending against the limits, taking it off the kept list if it was there.
+    // Returns why the spool can't take it, null if it can
+    private String startSending(SpooledFile file, ClientHandler sender) {
+        spaceLock.lock();
+        try {
+            int bySender = 0;
+            for (SpooledFile other : sending) {
+                if (other.uploader == sender && other != file) {
+                    bySender++;
+                }
+            }
+            if (bySender >= MAX_SENDING_PER_CLIENT) {
+                return "You are already sending " + MAX_SENDING_PER_CLIENT + " files, wait for one to finish";
+            }
+            if (!sending.contains(file)
+                    && (sending.size() >= MAX_SENDING_FILES || sendingBytes + file.fileSize > MAX_SENDING_BYTES)) {
+                return "The server is receiving too many files, try again later";
+            }
+            if (kept.remove(file)) {
+                keptBytes -= file.fileSize;
+            }
+            if (sending.add(file)) {
+                sendingBytes += file.fileSize;
+            }
+            file.uploader = sender;
+            return null;
+        } finally {
+            spaceLock.unlock();
+        }
+    }
+
+    // Tells a client the spool won't take its transfer
+    private static void refuse(ClientHandler sender, long transferId, String reason) {
+        System.out.println("Refusing transfer " + Long.toHexString(transferId) + " from " + sender.getSocketAddress() + ": " + reason);
+        try {
+            sender.send(Messages.fileError(transferId, reason), true);
+        } catch (Exception e) {
+            System.out.println("Error refusing transfer: " + e.getMessage());
+        }
+    }
+
+    // Writes a chunk from the file's sender to the spool and passes it on to every receiver that is ready
+    // for it. Returns false if the transfer isn't being spooled
+    boolean chunk(Frame frame, ClientHandler sender) {
+        SpooledFile file = files.get(Messages.readTransferId(frame));
+        if (file == null) {
+            return false;
+        }
+        int index = Messages.readChunkIndex(frame);
+        file.lock.lock();
+        try {
+            if (file.sender != sender) {
+                System.out.println("Ignoring chunk " + index + " for transfer " + Long.toHexString(file.transferId)
+                        + " from " + sender.getSocketAddress() + ", it isn't sending it");
+                return true;
+            }
+            if (Messages.readTotalChunks(frame) != file.totalChunks || index < 0 || index >= file.totalChunks
+                    || !hasChunkLength(frame, Math.min(FileTransfer.CHUNK_SIZE, file.fileSize - (long) index * FileTransfer.CHUNK_SIZE))) {
+                System.out.println("Ignoring invalid chunk " + index + " for transfer " + Long.toHexString(file.transferId));
+                return true;
+            }
+            if (file.chunks[index] == null) {
+                ByteBuffer encoded = frame.toBuffer();
+                int length = encoded.remaining();
+                while (encoded.hasRemaining()) {
+                    file.channel.write(encoded, file.appendPosition + encoded.position());
+                }
+                file.chunks[index] = new Region(file.channel, file.appendPosition, length, frame.isCompressed());
+                file.appendPosition += length;
+                file.stored.set(index);
+                hashChunks(file, frame, index);
+            }
+            for (Map.Entry<ClientHandler, Delivery> entry : file.deliveries.entrySet()) {
+                Delivery delivery = entry.getValue();
+                if (delivery.ready && !delivery.sent.get(index)) {
+                    delivery.sent.set(index);
+                    entry.getKey().sendRegion(file.chunks[index]);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing to spool: " + e.getMessage());
+            return false;
+        } finally {
+            file.lock.unlock();
+        }
+        return true;
+    }
+
+    // A chunk's body is known to be the right size without decrypting it, compressed ones give their
+    // size before compression and the rest are padded to the next whole block
+    private static boolean hasChunkLength(Frame frame, long expected) {
+        if (frame.isCompressed()) {
+            return frame.getInflatedLength() == expected;
+        }
+        return frame.getPayloadLength() == EncryptionTool.encryptedSize((int) expected);
+    }
+
+    // The sender has sent everything, receivers that have had all their chunks get the end message.
+    // A file only counts as finished once every chunk is here and it matches its content hash. One that
+    // doesn't match is thrown away, and one with chunks missing is kept as abandoned, for the sender to finish
+    boolean end(Frame frame, ClientHandler sender) {
+        SpooledFile file = files.get(Messages.readTransferId(frame));
+        if (file == null) {
+            return false;
+        }
+        Frame error = null;
+        boolean damaged = false;
+        file.lock.lock();
+        try {
+            if (file.sender != sender) {
+                System.out.println("Ignoring end of transfer " + Long.toHexString(file.transferId) + " from " + sender.getSocketAddress());
+                return true;
+            }
+            if (file.stored.cardinality() < file.totalChunks) {
+                System.out.println("Transfer " + Long.toHexString(file.transferId) + " ended with "
+                        + (file.totalChunks - file.stored.cardinality()) + " chunks missing, keeping it unfinished");
+                error = Messages.fileError(file.transferId, "File arrived incomplete, please send it again");
+                file.sender = null;
+            } else if (file.digest != null && !file.verified && !(file.verified = matchesContentHash(file))) {
+                damaged = true;
+                System.out.println("Transfer " + Long.toHexString(file.transferId) + " doesn't match its content hash, discarding it");
+                error = Messages.fileError(file.transferId, "File was damaged on the way, please send it again");
+                for (ClientHandler client : file.deliveries.keySet()) {
+                    client.send(error, true);
+                }
+                file.deliveries.clear();
+            } else {
+                file.end = frame;
+                file.sender = null;
+                for (ClientHandler client : new ArrayList<>(file.deliveries.keySet())) {
+                    if (file.deliveries.get(client).ready) {
+                        finishDelivery(file, client);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Error ending spooled file: " + e.getMessage());
+            return true;
+        } finally {
+            file.lock.unlock();
+        }
+        if (error != null) {
+            sender.send(error, true);
+        }
+        if (damaged) {
+            discard(file);
+        } else {
+            keep(file);
+        }
+        return true;
+    }
+
+    // Adds the content to the digest as far as it has arrived in order, so the end of a transfer only has
+    // to compare hashes. newest is the chunk just stored, any after it that came early are read back from
+    // the spool. Caller holds the file's lock
+    private static void hashChunks(SpooledFile file, Frame newest, int newestIndex) {
+        if (file.digest == null) {
+            return;
+        }
+        try {
+            while (file.hashedChunks < file.totalChunks && file.stored.get(file.hashedChunks)) {
+                Frame chunk = file.hashedChunks == newestIndex ? newest : file.chunks[file.hashedChunks].readFrame();
+                file.digest.update(chunk.open());
+                file.hashedChunks++;
+            }
+        } catch (Exception e) {
+            // Left where it stopped, the file then can't match its hash
+            System.out.println("Error hashing spooled chunk " + file.hashedChunks + ": " + e.getMessage());
+        }
+    }
+
+    // Caller holds the file's lock and every chunk has arrived
+    private static boolean matchesContentHash(SpooledFile file) {
+        hashChunks(file, null, -1);
+        return file.hashedChunks == file.totalChunks && MessageDigest.isEqual(file.digest.digest(), file.contentHash);
+    }
+
+    // The sender gave up, receivers are told and the spooled data is thrown away
+    boolean error(Frame frame, ClientHandler sender) {
+        SpooledFile file = files.get(Messages.readTransferId(frame));
+        if (file == null) {
+            return false;
+        }
+        file.lock.lock();
+        try {
+            if (file.sender != sender) {
+                System.out.println("Ignoring error for transfer " + Long.toHexString(file.transferId) + " from " + sender.getSocketAddress());
+                return true;
+            }
+            for (ClientHandler client : file.deliveries.keySet()) {
+                client.send(frame, true);
+            }
+            file.deliveries.clear();
+        } finally {
+            file.lock.unlock();
+        }
+        discard(file);
+        return true;
+    }
+
+    // A receiver listed the chunks it already has, it now gets the rest
+    void resumeReply(long transferId, ClientHandler client, BitSet received) {
+        SpooledFile file = files.get(transferId);
+        if (file == null) {
+            return;
+        }
+        file.lock.lock();
+        try {
+            Delivery delivery = file.deliveries.get(client);
+            if (delivery == null || delivery.ready) {
+                return;
+            }
+            delivery.sent.or(received);
+            delivery.ready = true;
+            sendStored(file, client, delivery);
+            if (file.end != null) {
+                finishDelivery(file, client);
+            }
+        } finally {
+            file.lock.unlock();
+        }
+    }
+
+    // Offers the recently finished files of its room to a client that has just logged in or joined the room
+    void clientJoined(ClientHandler client) {
+        String room = client.getRoom().getName();
+        List<SpooledFile> recent = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        spaceLock.lock();
+        try {
+            for (SpooledFile file : kept) {
+                if (now - file.keptSince < KEEP_MILLIS) {
+                    recent.add(file);
+                }
+            }
+        } finally {
+            spaceLock.unlock();
+        }
+
+        for (SpooledFile file : recent) {
+            file.lock.lock();
+            try {
+                if (file.end != null && file.channel.isOpen() && file.rooms.contains(room) && !file.deliveredTo.contains(client.getUsername())
+                        && !file.deliveries.containsKey(client)) {
+                    startDelivery(file, client);
+                }
+            } finally {
+                file.lock.unlock();
+            }
+        }
+    }
+
+    // Stops sending to a client that has gone, and keeps files its uploads left unfinished for a while
+    void clientLeft(ClientHandler client) {
+        for (SpooledFile file : files.values()) {
+            boolean abandoned;
+            file.lock.lock();
+            try {
+                file.deliveries.remove(client);
+                abandoned = file.sender == client;
+                if (abandoned) {
+                    file.sender = null;
+                }
+            } finally {
+                file.lock.unlock();
+            }
+            if (abandoned) {
+                keep(file); // The same file sent again picks up where it left off
+            }
+        }
+    }
+
+    // Caller holds the file's lock
+    private void startDelivery(SpooledFile file, ClientHandler client) {
+        Delivery delivery = new Delivery();
+        file.deliveries.put(client, delivery);
+        client.send(file.start, true);
+        if (!client.usesBinaryProtocol()) {
+            // Text clients can't say what they have
+            delivery.ready = true;
+            sendStored(file, client, delivery);
+            if (file.end != null) {
+                finishDelivery(file, client);
+            }
+        }
+    }
+
+    private void sendStored(SpooledFile file, ClientHandler client, Delivery delivery) {
+        for (int i = file.stored.nextSetBit(0); i >= 0; i = file.stored.nextSetBit(i + 1)) {
+            if (!delivery.sent.get(i)) {
+                delivery.sent.set(i);
+                client.sendRegion(file.chunks[i]);
+            }
+        }
+    }
+
+    private void finishDelivery(SpooledFile file, ClientHandler client) {
+        client.send(file.end, true);
+        file.deliveries.remove(client);
+        if (client.getUsername() != null) {
+            file.deliveredTo.add(client.getUsername());
+        }
+    }
+
+    // Adds a file nobody is sending any more to the kept list, and drops the oldest ones over the limits
+    private void keep(SpooledFile file) {
+        List<SpooledFile> expired = new ArrayList<>();
+        spaceLock.lock();
+        try {
+            uncount(file);
+            file.keptSince = System.currentTimeMillis();
+            kept.addLast(file);
+            keptBytes += file.fileSize;
+            while (kept.size() > MAX_KEPT_FILES || keptBytes > MAX_KEPT_BYTES
+                    || file.keptSince - kept.peekFirst().keptSince > KEEP_MILLIS) {
+                SpooledFile oldest = kept.pollFirst();
+                keptBytes -= oldest.fileSize;
+                expired.add(oldest);
+            }
+        } finally {
+            spaceLock.unlock();
+        }
+        for (SpooledFile oldest : expired) {
+            discard(oldest);
+        }
+    }
+
+    // Caller holds spaceLock
+    private void uncount(SpooledFile file) {
+        if (kept.remove(file)) {
+            keptBytes -= file.fileSize;
+        }
+        if (sending.remove(file)) {
+            sendingBytes -= file.fileSize;
+            file.uploader = null;
+        }
+    }
+
+    // Removes a file from the spool, chunks still queued for receivers are skipped
+    private void discard(SpooledFile file) {
+        files.remove(file.transferId, file);
+        spaceLock.lock();
+        try {
+            uncount(file);
+        } finally {
+            spaceLock.unlock();
+        }
+        file.lock.lock();
+        try {
+            file.channel.close();
+            Files.deleteIfExists(file.path);
+        } catch (IOException e) {
+            System.out.println("Error removing spool file: " + e.getMessage());
+        } finally {
+            file.lock.unlock();
+        }
+    }
+}
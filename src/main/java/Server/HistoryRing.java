@@ -0,0 +1,82 @@
+package Server;
+
+import java.nio.ByteBuffer;
+
+// The most recent chat and notices, kept as the encoded frames clients are sent, so that someone who has just
+// logged in can be shown what was said before they arrived. The frames sit back to back in one direct buffer
+// allocated at startup, wrapping around at its end, and the oldest are overwritten once either the message or
+// the byte limit is reached, so nothing is allocated per message. Not thread-safe, the server guards it with
+// its history lock
+final class HistoryRing {
+    private final ByteBuffer data;
+    private final int[] offsets; // Where each kept frame starts in data, a ring of its own
+    private final int[] lengths;
+    private int oldest; // Slot of the oldest kept frame
+    private int count;
+    private int usedBytes;
+    private int end; // Where the next frame goes
+
+    HistoryRing(int maxMessages, int maxBytes) {
+        this.data = ByteBuffer.allocateDirect(maxBytes);
+        this.offsets = new int[maxMessages];
+        this.lengths = new int[maxMessages];
+    }
+
+    // Copies a broadcast in, making room by dropping the oldest. A frame larger than the whole buffer isn't kept
+    void append(SharedFrame frame) {
+        int length = frame.getFrame().getEncodedLength();
+        if (length > data.capacity()) {
+            return;
+        }
+        while (count == offsets.length || usedBytes + length > data.capacity()) {
+            usedBytes -= lengths[oldest];
+            oldest = (oldest + 1) % offsets.length;
+            count--;
+        }
+        // A frame that runs past the end carries on at the start
+        int first = Math.min(length, data.capacity() - end);
+        frame.copyTo(0, data, end, first);
+        frame.copyTo(first, data, 0, length - first);
+        int slot = (oldest + count) % offsets.length;
+        offsets[slot] = end;
+        lengths[slot] = length;
+        count++;
+        usedBytes += length;
+        end = (end + length) % data.capacity();
+    }
+
+    // The newest frames, at most messages of them and as many as fit in maxBytes, oldest first in one pooled
+    // buffer ready to be written. Null if nothing is kept
+    ByteBuffer copyTail(int messages, int maxBytes) {
+        int taken = 0;
+        int bytes = 0;
+        while (taken < Math.min(messages, count)) {
+            int length = lengths[(oldest + count - 1 - taken) % offsets.length];
+            if (bytes + length > maxBytes) {
+                break;
+            }
+            bytes += length;
+            taken++;
+        }
+        if (taken == 0) {
+            return null;
+        }
+        ByteBuffer batch = BufferPool.acquire(bytes);
+        for (int i = count - taken; i < count; i++) {
+            int slot = (oldest + i) % offsets.length;
+            int first = Math.min(lengths[slot], data.capacity() - offsets[slot]);
+            batch.put(batch.position(), data, offsets[slot], first);
+            batch.put(batch.position() + first, data, 0, lengths[slot] - first);
+            batch.position(batch.position() + lengths[slot]);
+        }
+        return batch.flip();
+    }
+
+    int size() {
+        return count;
+    }
+
+    int getUsedBytes() {
+        return usedBytes;
+    }
+}
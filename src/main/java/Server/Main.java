@@ -1,33 +1,209 @@
 package Server;
 
+import java.util.Locale;
+
 public class Main {
 
     public static void main(String[] args) {
         String host = "localhost"; // Default
         int port = 1060; // Default
+        ServerConfig config = new ServerConfig();
 
         // Parse command-line arguments
         for (int i = 0; i < args.length; i++) {
             if (args[i].equals("-h") || args[i].equals("--host")) {
                 if (i + 1 < args.length) {
                     host = args[i + 1];
-                    i++; 
+                    i++;
                 }
             } else if (args[i].equals("-p") || args[i].equals("--port")) {
                 if (i + 1 < args.length) {
                     try {
                         port = Integer.parseInt(args[i + 1]);
-                        i++; 
+                        i++;
                     } catch (NumberFormatException e) {
                         System.err.println("Invalid port number");
                         System.exit(1);
                     }
                 }
+            } else if (args[i].equals("-m") || args[i].equals("--mode")) {
+                if (i + 1 < args.length) {
+                    String mode = args[i + 1].toLowerCase(Locale.ROOT);
+                    i++;
+                    if (!mode.equals(Server.MODE_BLOCKING) && !mode.equals(Server.MODE_VIRTUAL) && !mode.equals(Server.MODE_NIO)) {
+                        System.err.println("Invalid mode, use blocking, virtual or nio");
+                        System.exit(1);
+                    }
+                    if (mode.equals(Server.MODE_VIRTUAL) && !Server.supportsVirtualThreads()) {
+                        System.err.println("Virtual mode needs Java 21, use blocking or nio");
+                        System.exit(1);
+                    }
+                    config.setMode(mode);
+                }
+            } else if (args[i].equals("-l") || args[i].equals("--loops")) {
+                if (i + 1 < args.length) {
+                    try {
+                        config.setEventLoops(Math.max(1, Integer.parseInt(args[i + 1])));
+                        i++;
+                    } catch (NumberFormatException e) {
+                        System.err.println("Invalid number of event loops");
+                        System.exit(1);
+                    }
+                }
+            } else if (args[i].equals("-q") || args[i].equals("--queue-limit")) {
+                if (i + 1 < args.length) {
+                    try {
+                        // Given in KB per client
+                        config.setOutboundQueueBytes(Math.max(1, Long.parseLong(args[i + 1])) * 1024);
+                        i++;
+                    } catch (NumberFormatException e) {
+                        System.err.println("Invalid queue limit");
+                        System.exit(1);
+                    }
+                }
+            } else if (args[i].equals("-o") || args[i].equals("--overflow")) {
+                if (i + 1 < args.length) {
+                    String policy = args[i + 1].toLowerCase(Locale.ROOT);
+                    i++;
+                    if (!OutboundQueue.isValidPolicy(policy)) {
+                        System.err.println("Invalid overflow policy, use drop-oldest, drop-file-chunks or disconnect");
+                        System.exit(1);
+                    }
+                    config.setOverflowPolicy(policy);
+                }
+            } else if (args[i].equals("-c") || args[i].equals("--capacity")) {
+                if (i + 1 < args.length) {
+                    int connections = parseNumber(args[i + 1], "Invalid connection limit");
+                    if (connections < 1) {
+                        System.err.println("At least one connection must be allowed, or every client waits forever");
+                        System.exit(1);
+                    }
+                    config.setMaxConnections(connections);
+                    i++;
+                }
+            } else if (args[i].equals("--max-queue")) {
+                if (i + 1 < args.length) {
+                    config.setMaxQueueLength(parseNumber(args[i + 1], "Invalid waiting queue length"));
+                    i++;
+                }
+            } else if (args[i].equals("--linger")) {
+                if (i + 1 < args.length) {
+                    // Given in microseconds, at most a millisecond so chat never feels held up
+                    int linger = parseNumber(args[i + 1], "Invalid write linger time");
+                    if (linger > 1000) {
+                        System.err.println("Write linger time can be at most 1000 microseconds");
+                        System.exit(1);
+                    }
+                    config.setWriteLingerMicros(linger);
+                    i++;
+                }
+            } else if (args[i].equals("--auth-threads")) {
+                if (i + 1 < args.length) {
+                    int threads = parseNumber(args[i + 1], "Invalid number of auth threads");
+                    if (threads < 1) {
+                        System.err.println("At least one auth thread is needed");
+                        System.exit(1);
+                    }
+                    config.setAuthThreads(threads);
+                    i++;
+                }
+            } else if (args[i].equals("--auth-queue")) {
+                if (i + 1 < args.length) {
+                    config.setAuthQueueLength(parseNumber(args[i + 1], "Invalid auth queue length"));
+                    i++;
+                }
+            } else if (args[i].equals("--auth-rate")) {
+                if (i + 1 < args.length) {
+                    // Attempts per minute from one address, 0 for no limit
+                    config.setAuthAttemptsPerMinute(parseNumber(args[i + 1], "Invalid auth rate"));
+                    i++;
+                }
+            } else if (args[i].equals("--outbox")) {
+                if (i + 1 < args.length) {
+                    // Messages kept per session until the client acknowledges them
+                    int messages = parseNumber(args[i + 1], "Invalid outbox size");
+                    if (messages < 1) {
+                        System.err.println("The outbox must hold at least one message");
+                        System.exit(1);
+                    }
+                    config.setOutboxMessages(messages);
+                    i++;
+                }
+            } else if (args[i].equals("--history")) {
+                if (i + 1 < args.length) {
+                    // Recent chat messages kept for clients that log in later, 0 keeps none
+                    config.setHistoryMessages(parseNumber(args[i + 1], "Invalid history size"));
+                    i++;
+                }
+            } else if (args[i].equals("--history-kb")) {
+                if (i + 1 < args.length) {
+                    int kilobytes = parseNumber(args[i + 1], "Invalid history memory limit");
+                    if (kilobytes > 1024 * 1024) {
+                        System.err.println("The history can use at most 1GB");
+                        System.exit(1);
+                    }
+                    config.setHistoryBytes(kilobytes * 1024);
+                    i++;
+                }
+            } else if (args[i].equals("--history-replay")) {
+                if (i + 1 < args.length) {
+                    // Messages from the history sent to each client that logs in
+                    config.setHistoryReplay(parseNumber(args[i + 1], "Invalid history replay length"));
+                    i++;
+                }
+            } else if (args[i].equals("--log-mb")) {
+                if (i + 1 < args.length) {
+                    // Disk space for the chat log, 0 keeps no log
+                    config.setChatLogBytes(parseNumber(args[i + 1], "Invalid chat log size") * 1024L * 1024);
+                    i++;
+                }
+            } else if (args[i].equals("--log-segment-mb")) {
+                if (i + 1 < args.length) {
+                    int megabytes = parseNumber(args[i + 1], "Invalid chat log segment size");
+                    if (megabytes < 1 || megabytes > 1024) {
+                        System.err.println("Chat log segments must be between 1 and 1024MB");
+                        System.exit(1);
+                    }
+                    config.setChatLogSegmentBytes(megabytes * 1024 * 1024);
+                    i++;
+                }
+            } else if (args[i].equals("--log-hours")) {
+                if (i + 1 < args.length) {
+                    // How long chat is kept in the log
+                    int hours = parseNumber(args[i + 1], "Invalid chat log age");
+                    if (hours < 1) {
+                        System.err.println("The chat log must keep chat for at least an hour, use --log-mb 0 to turn it off");
+                        System.exit(1);
+                    }
+                    config.setChatLogHours(hours);
+                    i++;
+                }
+            } else if (args[i].equals("--wait-timeout")) {
+                if (i + 1 < args.length) {
+                    // Given in seconds, 0 waits forever
+                    config.setWaitTimeoutSeconds(parseNumber(args[i + 1], "Invalid wait timeout"));
+                    i++;
+                }
             }
         }
 
-        System.out.println("Starting server on " + host + ":" + port);
-        Server server = new Server(host, port);
+        System.out.println("Starting server on " + host + ":" + port + " in " + config.getMode() + " mode");
+        Server server = new Server(host, port, config);
         server.start();
     }
-}
\ No newline at end of file
+
+    // Parses a non-negative number argument, exits with the given message if it isn't one
+    private static int parseNumber(String value, String errorMessage) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number >= 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // Falls through to the error below
+        }
+        System.err.println(errorMessage);
+        System.exit(1);
+        return 0;
+    }
+}
@@ -0,0 +1,467 @@
+package Server;
+
+import Protocol.Frame;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// A non-blocking client connection, only ever read and written on its own selector loop
+public class NioConnection implements ClientTransport {
+    private static final int MAX_LINE_LENGTH = 4 * 1024 * 1024; // Well above an encrypted 64KB file chunk
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();
+    private static final int MAX_GATHER = 64; // Buffers handed to one gathering write
+
+    private final SocketChannel channel;
+    private final SelectorLoop loop;
+    private final NioServer nioServer;
+    private final SocketAddress remoteAddress;
+    private SelectionKey key;
+    private ClientHandler handler; // Null while the client waits in the queue
+    private AdmissionController.Waiter waiter; // Its entry in the admission queue
+
+    private final OutboundQueue writeQueue;
+    // Messages taken from the queue for one gathering write, each still in its own buffer. A frame's buffer
+    // is a view of its shared encoding, and the entry is released once the buffer is fully written
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final OutboundQueue.Entry[] gatherEntries = new OutboundQueue.Entry[MAX_GATHER]; // Null for lines
+    private int gatherStart; // First buffer not fully written yet
+    private int gatherEnd;
+    private OutboundQueue.Entry heldEntry; // Spooled chunk taken from the queue after the last gather
+    private FileSpool.Region currentRegion; // Or a spooled chunk partly copied to the socket
+    private long regionOffset;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private volatile boolean closing;
+    private boolean closed;
+    private volatile boolean binaryProtocol; // Set by the handler on the loop thread, read by writers too
+
+    // Bytes of a line or frame that has not fully arrived yet, allocated only when needed
+    private byte[] partial;
+    private int partialLength;
+
+    public NioConnection(SocketChannel channel, SelectorLoop loop, NioServer nioServer, OutboundQueue writeQueue) throws IOException {
+        this.channel = channel;
+        this.loop = loop;
+        this.nioServer = nioServer;
+        this.writeQueue = writeQueue;
+        this.remoteAddress = channel.getRemoteAddress();
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    void setHandler(ClientHandler handler) {
+        this.handler = handler;
+    }
+
+    void setWaiter(AdmissionController.Waiter waiter) {
+        this.waiter = waiter;
+    }
+
+    AdmissionController.Waiter getWaiter() {
+        return waiter;
+    }
+
+    public SelectorLoop getLoop() {
+        return loop;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public boolean isClosed() {
+        return closed || closing;
+    }
+
+    @Override
+    public void sendLine(String line) {
+        if (!closed) {
+            queued(writeQueue.offerLine(line));
+        }
+    }
+
+    @Override
+    public void sendFrame(SharedFrame frame, boolean fileData) {
+        if (!closed) {
+            queued(writeQueue.offerFrame(frame, fileData));
+        }
+    }
+
+    @Override
+    public void sendSequenced(SharedFrame frame) {
+        if (!closed) {
+            queued(writeQueue.offerSequenced(frame));
+        }
+    }
+
+    private void queued(boolean accepted) {
+        if (!accepted) {
+            System.out.println("Client " + remoteAddress + " is too slow, disconnecting");
+            writeQueue.close(); // Later messages are ignored until the loop closes the channel
+            loop.execute(this::closeNow);
+            return;
+        }
+        scheduleWrite();
+    }
+
+    @Override
+    public void sendEncoded(ByteBuffer encoded) {
+        if (!closed) {
+            queued(writeQueue.offerEncoded(encoded));
+        }
+    }
+
+    @Override
+    public void sendRegion(FileSpool.Region region) {
+        if (!closed) {
+            queued(writeQueue.offerRegion(region));
+        }
+    }
+
+    @Override
+    public void useBinaryProtocol() {
+        binaryProtocol = true;
+    }
+
+    @Override
+    public void close() {
+        closing = true;
+        scheduleWrite();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return writeQueue.getDroppedCount();
+    }
+
+    // Makes sure the loop will try to write, without piling up one task per message
+    private void scheduleWrite() {
+        if (loop.inLoop()) {
+            enableWrite();
+        } else if (writeScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                writeScheduled.set(false);
+                enableWrite();
+            });
+        }
+    }
+
+    private void enableWrite() {
+        if (!closed && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    // Reads whatever is available and hands each complete line or frame to the handler
+    void onReadable(ByteBuffer readBuffer) {
+        int read;
+        readBuffer.clear();
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            System.out.println("Error reading from " + remoteAddress + ": " + e.getMessage());
+            closeNow();
+            return;
+        }
+        if (read < 0) {
+            closeNow();
+            return;
+        }
+
+        // The client may switch to frames after any line, so each pass stops there
+        byte[] data = readBuffer.array();
+        int position = 0;
+        while (position < read && !closed) {
+            position = binaryProtocol ? readFrames(data, position, read) : readLines(data, position, read);
+        }
+    }
+
+    // Handles complete lines from data, returns how far it got
+    private int readLines(byte[] data, int offset, int end) {
+        for (int i = offset; i < end; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            String line;
+            if (partialLength > 0) {
+                appendPartial(data, offset, i - offset);
+                line = decodeLine(partial, 0, partialLength);
+                partialLength = 0;
+            } else {
+                line = decodeLine(data, offset, i - offset);
+            }
+            offset = i + 1;
+            if (handler != null) {
+                handler.handleLine(line);
+            }
+            if (closed || binaryProtocol) {
+                return offset;
+            }
+        }
+
+        if (partialLength + (end - offset) > MAX_LINE_LENGTH) {
+            System.out.println("Line too long from " + remoteAddress + ", closing connection");
+            closeNow();
+            return end;
+        }
+        appendPartial(data, offset, end - offset);
+        return end;
+    }
+
+    // Handles complete frames from data, returns how far it got
+    private int readFrames(byte[] data, int offset, int end) {
+        if (partialLength > 0) {
+            // Top up the frame started in an earlier read with just the bytes it still needs
+            int needed = partialLength < Frame.PREFIX_SIZE ? Frame.PREFIX_SIZE - partialLength
+                    : frameLength(partial, 0) - partialLength;
+            int taken = Math.min(needed, end - offset);
+            appendPartial(data, offset, taken);
+            offset += taken;
+            if (partialLength >= Frame.PREFIX_SIZE) {
+                int length = frameLength(partial, 0);
+                if (length < 0) {
+                    return end;
+                }
+                if (partialLength == length) {
+                    partialLength = 0;
+                    deliverFrame(partial, 0);
+                }
+            }
+            return offset;
+        }
+
+        // Whole frames straight from the read buffer
+        while (end - offset >= Frame.PREFIX_SIZE && !closed) {
+            int length = frameLength(data, offset);
+            if (length < 0) {
+                return end;
+            }
+            if (end - offset < length) {
+                break;
+            }
+            deliverFrame(data, offset);
+            offset += length;
+        }
+        if (!closed) {
+            appendPartial(data, offset, end - offset);
+        }
+        return end;
+    }
+
+    // Full encoded length of the frame whose prefix is at offset, or -1 after closing on a bad length
+    private int frameLength(byte[] data, int offset) {
+        int payloadLength = Frame.readPayloadLength(data, offset);
+        if (payloadLength < 0 || payloadLength > Frame.MAX_PAYLOAD_LENGTH) {
+            System.out.println("Invalid frame length from " + remoteAddress + ", closing connection");
+            closeNow();
+            return -1;
+        }
+        return Frame.PREFIX_SIZE + Frame.readHeaderLength(data, offset) + payloadLength;
+    }
+
+    private void deliverFrame(byte[] data, int offset) {
+        if (handler != null) {
+            handler.handleFrame(Frame.parse(data, offset));
+        }
+    }
+
+    private void appendPartial(byte[] data, int offset, int length) {
+        if (partial == null) {
+            partial = new byte[Math.max(1024, length)];
+        } else if (partialLength + length > partial.length) {
+            partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLength + length));
+        }
+        System.arraycopy(data, offset, partial, partialLength, length);
+        partialLength += length;
+    }
+
+    private static String decodeLine(byte[] data, int offset, int length) {
+        if (length > 0 && data[offset + length - 1] == '\r') {
+            length--;
+        }
+        return new String(data, offset, length);
+    }
+
+    // Writes as much of the queue as the socket will take
+    void onWritable() {
+        try {
+            if (gatherStart == gatherEnd && currentRegion == null && heldEntry == null && !closing) {
+                // A few small messages wait briefly for company, so they share one write
+                long linger = writeQueue.lingerRemaining(OutboundQueue.BATCH_BYTES);
+                if (linger > 0) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    loop.wakeAfter(this, linger);
+                    return;
+                }
+            }
+            while (true) {
+                if (currentRegion != null) {
+                    // Straight from the spool file to the socket, the kernel does the copy
+                    regionOffset += currentRegion.transferTo(regionOffset, channel);
+                    if (regionOffset < currentRegion.getLength()) {
+                        return; // Socket buffer is full, wait for the next OP_WRITE
+                    }
+                    currentRegion = null;
+                    continue;
+                }
+                if (gatherStart == gatherEnd && !gatherNext()) {
+                    if (currentRegion != null) {
+                        continue;
+                    }
+                    break;
+                }
+                channel.write(gather, gatherStart, gatherEnd - gatherStart);
+                releaseWritten();
+                if (gatherStart < gatherEnd) {
+                    return; // Socket buffer is full, wait for the next OP_WRITE
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing to " + remoteAddress + ": " + e.getMessage());
+            closeNow();
+            return;
+        }
+
+        if (closing) {
+            closeNow();
+            return;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        // A message may have arrived after the queue looked empty
+        if (!writeQueue.isEmpty()) {
+            enableWrite();
+        }
+    }
+
+    // Takes queued messages for one gathering write, so a burst of small ones goes out in a single system
+    // call without being copied together. Returns false if nothing was taken: the queue is empty, or a
+    // spooled chunk is next, which is then set as currentRegion
+    private boolean gatherNext() {
+        int gathered = 0;
+        while (gatherEnd < MAX_GATHER && gathered < OutboundQueue.BATCH_BYTES) {
+            OutboundQueue.Entry entry = heldEntry != null ? heldEntry : writeQueue.poll();
+            heldEntry = null;
+            if (entry == null) {
+                break;
+            }
+            if (entry.getRegion() != null && binaryProtocol) {
+                if (gatherEnd > 0) {
+                    heldEntry = entry; // Whatever was gathered before it goes first
+                    break;
+                }
+                if (entry.getRegion().isAvailable()) {
+                    currentRegion = entry.getRegion();
+                    regionOffset = 0;
+                    return false;
+                }
+                continue;
+            }
+            ByteBuffer buffer;
+            OutboundQueue.Entry held = null;
+            if (entry.getEncoded() != null) {
+                held = entry; // Its buffer goes back to the pool once written
+                buffer = entry.getEncoded();
+            } else if (entry.getFrame() != null && binaryProtocol) {
+                held = entry; // Its reference is released once the view is written
+                buffer = entry.getFrame().view();
+            } else {
+                buffer = encode(entry);
+                entry.release();
+                if (buffer == null) {
+                    continue;
+                }
+            }
+            gather[gatherEnd] = buffer;
+            gatherEntries[gatherEnd] = held;
+            gatherEnd++;
+            gathered += buffer.remaining();
+        }
+        return gatherEnd > 0;
+    }
+
+    // Moves past the buffers the last write finished, releasing their entries
+    private void releaseWritten() {
+        while (gatherStart < gatherEnd && !gather[gatherStart].hasRemaining()) {
+            if (gatherEntries[gatherStart] != null) {
+                gatherEntries[gatherStart].release();
+                gatherEntries[gatherStart] = null;
+            }
+            gather[gatherStart] = null;
+            gatherStart++;
+        }
+        if (gatherStart == gatherEnd) {
+            gatherStart = 0;
+            gatherEnd = 0;
+        }
+    }
+
+    // Called by the loop once a linger has run out
+    void lingerExpired() {
+        enableWrite();
+    }
+
+    // Line to send a text client for a queue entry, null if it couldn't be converted
+    private ByteBuffer encode(OutboundQueue.Entry entry) {
+        if (entry.getLine() != null) {
+            return encodeLine(entry.getLine());
+        }
+        try {
+            FileSpool.Region region = entry.getRegion();
+            if (region != null && !region.isAvailable()) {
+                return null; // Removed from the spool while this was queued
+            }
+            return encodeLine(TextCompat.toTextLine(region != null ? region.readFrame() : entry.getFrame().getFrame()));
+        } catch (Exception e) {
+            System.out.println("Error converting message for text client: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static ByteBuffer encodeLine(String line) {
+        byte[] text = line.getBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(text.length + LINE_SEPARATOR.length);
+        buffer.put(text).put(LINE_SEPARATOR).flip();
+        return buffer;
+    }
+
+    // Closes the channel immediately and tells whoever owns the connection
+    void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closing = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Error closing socket: " + e.getMessage());
+        }
+        writeQueue.close();
+        writeQueue.clear();
+        for (int i = gatherStart; i < gatherEnd; i++) {
+            if (gatherEntries[i] != null) {
+                gatherEntries[i].release();
+            }
+        }
+        Arrays.fill(gather, null);
+        Arrays.fill(gatherEntries, null);
+        gatherStart = 0;
+        gatherEnd = 0;
+        heldEntry = null;
+        currentRegion = null;
+        partial = null;
+
+        if (handler != null) {
+            handler.onDisconnected();
+        } else {
+            nioServer.removeWaiting(this);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package Server;
+
+import Encryption.EncryptionTool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+// Selector-based server core: one acceptor plus a few event loops instead of a thread per client
+public final class NioServer {
+    private final Server server;
+    private final String host;
+    private final int port;
+    private final SelectorLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private Selector acceptSelector;
+    private volatile boolean running = true;
+    private int nextLoop;
+
+    public NioServer(Server server, String host, int port, int eventLoops) throws IOException {
+        this.server = server;
+        this.host = host;
+        this.port = port;
+        this.loops = new SelectorLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new SelectorLoop(this);
+        }
+    }
+
+    // Binds the server channel and accepts connections until shut down
+    public void run() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(host, port)); // Binds socket to specified host and port
+        serverChannel.configureBlocking(false);
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i].start("nio-loop-" + i);
+        }
+        System.out.println("Server started at " + serverChannel.getLocalAddress() + " (NIO, " + loops.length + " event loops)");
+        server.printStartupInfo();
+
+        while (running) {
+            acceptSelector.select();
+            acceptSelector.selectedKeys().clear();
+            if (!running) {
+                break;
+            }
+
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                System.out.println("New connection attempt from " + channel.getRemoteAddress() + " to " + channel.getLocalAddress());
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                // Spread connections over the event loops
+                loops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % loops.length;
+            }
+        }
+        acceptSelector.close();
+    }
+
+    // Runs on the connection's loop once it is registered, the admission controller admits or queues it
+    void admit(NioConnection connection) {
+        AdmissionController admission = server.getAdmission();
+        AdmissionController.Waiter waiter = new AdmissionController.Waiter() {
+            private boolean queued;
+
+            @Override
+            protected void admitted(boolean wasWaiting) {
+                connection.getLoop().execute(() -> {
+                    if (connection.isClosed()) {
+                        // Gave up while the slot was being handed over, pass it on
+                        admission.release();
+                        return;
+                    }
+                    if (wasWaiting) {
+                        connection.sendLine("SERVER_CONNECTED:You've been granted access to the server.");
+                        connection.sendLine(EncryptionTool.getKeyAsString());
+                        System.out.println("Sent encryption key to previously waiting client");
+                    }
+                    startHandler(connection, wasWaiting);
+                });
+            }
+
+            @Override
+            protected void status(String message) {
+                if (!queued) {
+                    queued = true;
+                    System.out.println("Server full - Client " + connection.getRemoteAddress() + " will wait in queue");
+                }
+                connection.sendLine(message);
+            }
+
+            @Override
+            protected void rejected(String message) {
+                System.out.println("Turning away " + connection.getRemoteAddress() + ": " + message);
+                connection.sendLine(message);
+                connection.close();
+            }
+        };
+        connection.setWaiter(waiter);
+        admission.requestAdmission(waiter);
+    }
+
+    private void startHandler(NioConnection connection, boolean wasWaiting) {
+        System.out.println("Connection granted to " + connection.getRemoteAddress() + " - " + server.getConnectionSummary());
+        ClientHandler clientHandler = new ClientHandler(connection.getRemoteAddress(), server, connection, wasWaiting);
+        connection.setHandler(clientHandler);
+        server.addClient(clientHandler);
+        clientHandler.onConnected();
+    }
+
+    OutboundQueue createOutboundQueue() {
+        return server.createOutboundQueue();
+    }
+
+    // A queued client disconnected before getting a slot
+    void removeWaiting(NioConnection connection) {
+        if (connection.getWaiter() != null) {
+            server.getAdmission().cancel(connection.getWaiter());
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            if (acceptSelector != null) {
+                acceptSelector.wakeup();
+            }
+        } catch (IOException e) {
+            System.out.println("Error closing server socket: " + e.getMessage());
+        }
+        for (SelectorLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package Server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded queue of messages waiting to be written to one client, so a slow reader only holds up itself
+public class OutboundQueue {
+    // What to do when a client falls too far behind
+    public static final String DROP_OLDEST = "drop-oldest"; // Discard the oldest queued lines
+    public static final String DROP_FILE_CHUNKS = "drop-file-chunks"; // Discard queued file data before chat
+    public static final String DISCONNECT = "disconnect"; // Close the connection
+
+    public static final int BATCH_BYTES = 16 * 1024; // Writers stop gathering messages for one write at this much
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock(); // Not synchronized, waiting must not pin a virtual thread
+    private final Condition notEmpty = lock.newCondition();
+    private final long maxBytes;
+    private final String overflowPolicy;
+    private final long lingerNanos; // How long a writer may hold a few small messages back waiting for more
+    private long queuedBytes;
+    private long firstQueuedAt; // When the queue last went from empty to not empty
+    private long droppedCount;
+    private boolean closed;
+
+    // A spooled chunk counts as this much, its data waits on disk rather than in memory
+    private static final int REGION_ENTRY_SIZE = 64;
+
+    // A plain text line (handshake and queue messages), a frame, a chunk frame in the file spool, or frames
+    // already encoded back to back in a pooled buffer. A frame entry holds a reference to it, and an encoded
+    // entry owns its buffer, whoever removes the entry releases that
+    public static final class Entry {
+        private final String line;
+        private final SharedFrame frame;
+        private final FileSpool.Region region;
+        private final ByteBuffer encoded;
+        private final boolean fileData;
+        private final boolean sequenced; // Counted by the client, never dropped
+
+        private Entry(String line, SharedFrame frame, FileSpool.Region region, boolean fileData, boolean sequenced) {
+            this(line, frame, region, null, fileData, sequenced);
+        }
+
+        private Entry(String line, SharedFrame frame, FileSpool.Region region, ByteBuffer encoded, boolean fileData, boolean sequenced) {
+            this.line = line;
+            this.frame = frame;
+            this.region = region;
+            this.encoded = encoded;
+            this.fileData = fileData;
+            this.sequenced = sequenced;
+        }
+
+        public String getLine() {
+            return line;
+        }
+
+        public SharedFrame getFrame() {
+            return frame;
+        }
+
+        public FileSpool.Region getRegion() {
+            return region;
+        }
+
+        public ByteBuffer getEncoded() {
+            return encoded;
+        }
+
+        int size() {
+            if (line != null) {
+                return line.length();
+            }
+            if (encoded != null) {
+                return encoded.limit();
+            }
+            return region != null ? REGION_ENTRY_SIZE : frame.getFrame().getEncodedLength();
+        }
+
+        // Gives back the frame's reference, or the buffer, once the entry is written or thrown away
+        public void release() {
+            if (frame != null) {
+                frame.release();
+            } else if (encoded != null) {
+                BufferPool.release(encoded);
+            }
+        }
+    }
+
+    public OutboundQueue(long maxBytes, String overflowPolicy, long lingerNanos) {
+        this.maxBytes = maxBytes;
+        this.overflowPolicy = overflowPolicy;
+        this.lingerNanos = lingerNanos;
+    }
+
+    public static boolean isValidPolicy(String policy) {
+        return DROP_OLDEST.equals(policy) || DROP_FILE_CHUNKS.equals(policy) || DISCONNECT.equals(policy);
+    }
+
+    // Adds a text line, returns false if the client is too slow and should be disconnected
+    public boolean offerLine(String line) {
+        return offer(new Entry(line, null, null, false, false));
+    }
+
+    // Adds a frame, fileData lets the overflow policy drop file chunks first
+    public boolean offerFrame(SharedFrame frame, boolean fileData) {
+        return offer(new Entry(null, frame, null, fileData, false));
+    }
+
+    // Adds a numbered chat or notice. Its session's outbox holds the frame until the client acknowledges it,
+    // so dropping it here would free nothing and throw off the client's count. If only numbered messages
+    // are left and it still doesn't fit, the client is disconnected and gets them again when it resumes
+    public boolean offerSequenced(SharedFrame frame) {
+        return offer(new Entry(null, frame, null, false, true));
+    }
+
+    // Adds frames that are already encoded, for binary clients only. The queue owns the buffer from now on,
+    // even if it turns the entry away
+    public boolean offerEncoded(ByteBuffer encoded) {
+        Entry entry = new Entry(null, null, null, encoded, false, false);
+        if (!offer(entry)) {
+            entry.release();
+            return false;
+        }
+        return true;
+    }
+
+    // Adds a chunk that is sent straight from the spool file
+    public boolean offerRegion(FileSpool.Region region) {
+        return offer(new Entry(null, null, region, true, false));
+    }
+
+    private boolean offer(Entry entry) {
+        int size = entry.size();
+        lock.lock();
+        try {
+            if (closed) {
+                // Connection is going away anyway. A frame is only retained once queued, but an encoded
+                // buffer already belongs to the queue, so it goes back to the pool here
+                if (entry.encoded != null) {
+                    BufferPool.release(entry.encoded);
+                }
+                return true;
+            }
+            // A single message larger than the limit still goes through on an empty queue
+            if (!entries.isEmpty() && queuedBytes + size > maxBytes) {
+                if (DISCONNECT.equals(overflowPolicy)) {
+                    return false;
+                }
+                if (DROP_FILE_CHUNKS.equals(overflowPolicy)) {
+                    dropFileData(size);
+                }
+                Iterator<Entry> oldest = entries.iterator();
+                while (oldest.hasNext() && queuedBytes + size > maxBytes) {
+                    Entry queued = oldest.next();
+                    if (!queued.sequenced) {
+                        oldest.remove();
+                        discard(queued);
+                    }
+                }
+                if (!entries.isEmpty() && queuedBytes + size > maxBytes) {
+                    return false;
+                }
+            }
+            if (entries.isEmpty()) {
+                firstQueuedAt = System.nanoTime();
+            }
+            if (entry.frame != null) {
+                entry.frame.retain();
+            }
+            entries.addLast(entry);
+            queuedBytes += size;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Removes the oldest file data until the new message fits
+    private void dropFileData(int needed) {
+        Iterator<Entry> iterator = entries.iterator();
+        while (iterator.hasNext() && queuedBytes + needed > maxBytes) {
+            Entry entry = iterator.next();
+            if (entry.fileData) {
+                iterator.remove();
+                entry.release();
+                queuedBytes -= entry.size();
+                droppedCount++;
+            }
+        }
+    }
+
+    private void discard(Entry entry) {
+        entry.release();
+        queuedBytes -= entry.size();
+        droppedCount++;
+    }
+
+    // Returns the next entry without waiting, or null if there is none
+    public Entry poll() {
+        lock.lock();
+        try {
+            Entry entry = entries.pollFirst();
+            if (entry == null) {
+                return null;
+            }
+            queuedBytes -= entry.size();
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits for the next entry, returns null once the queue is closed and drained
+    public Entry take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (entries.isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            Entry entry = entries.pollFirst();
+            queuedBytes -= entry.size();
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the next entry, waiting until deadline (a System.nanoTime value) if there is none yet.
+    // Returns null if nothing came in time or the queue is closed and drained
+    public Entry poll(long deadline) throws InterruptedException {
+        lock.lock();
+        try {
+            while (entries.isEmpty()) {
+                long remaining = deadline - System.nanoTime();
+                if (closed || remaining <= 0) {
+                    return null;
+                }
+                notEmpty.awaitNanos(remaining);
+            }
+            Entry entry = entries.pollFirst();
+            queuedBytes -= entry.size();
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // How much longer a writer should wait for more messages before writing what's queued, 0 to write now.
+    // Only a few small messages are held back, file data and anything over batchBytes goes straight out
+    public long lingerRemaining(int batchBytes) {
+        lock.lock();
+        try {
+            if (entries.isEmpty() || closed || queuedBytes >= batchBytes || entries.peekFirst().fileData) {
+                return 0;
+            }
+            return Math.max(0, firstQueuedAt + lingerNanos - System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getLingerNanos() {
+        return lingerNanos;
+    }
+
+    // Stops accepting messages, anything already queued can still be drained
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops everything still queued
+    public void clear() {
+        lock.lock();
+        try {
+            for (Entry entry : entries) {
+                entry.release();
+            }
+            entries.clear();
+            queuedBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return entries.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return droppedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package Server;
+
+import Protocol.Messages;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Chat and notices sent to one login session that the client hasn't acknowledged yet. The session outlives
+// its connection: while the client is away it keeps collecting broadcasts, and when the client resumes on a
+// new connection everything it hasn't acknowledged is sent again, in order. Messages are numbered as they
+// are added. The numbers aren't sent, the client counts from the SEQUENCE frame sent on each takeover
+public class Outbox {
+    private static final int RECENT_CHECK = 16; // How far back a frame added twice is looked for
+
+    private final long id = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    private final int capacity;
+    private final ArrayDeque<SharedFrame> frames = new ArrayDeque<>(); // Unacknowledged, oldest first
+    private final ReentrantLock lock = new ReentrantLock();
+    private long firstSequence = 1; // Number of the oldest frame kept
+    private ClientHandler owner; // Connection that has the session, null while the client is away
+    private ClientTransport transport;
+    private boolean started; // A login has completed, nothing is kept before that
+    private boolean closed;
+    private long detachedAt; // System.currentTimeMillis when the owner went away
+    private long evicted; // Dropped unacknowledged because the outbox was full
+    private volatile String room = Room.LOBBY; // Where the client was, it goes back there when it resumes
+    private long broadcastsBefore; // Broadcasts up to this one came before the login, and are never numbered here
+
+    public Outbox(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public void setRoom(String room) {
+        this.room = room;
+    }
+
+    // Numbers a frame and sends it to the connection that has the session, or keeps it for the client's return.
+    // While a connection takes over, one broadcast can arrive here through both the old and the new
+    // connection, or the detached list, so a frame that is already among the newest is only kept once
+    public void send(SharedFrame frame) {
+        lock.lock();
+        try {
+            if (!started || closed || frame.getBroadcastId() != 0 && frame.getBroadcastId() <= broadcastsBefore || isRecent(frame)) {
+                return;
+            }
+            if (frames.size() == capacity) {
+                frames.pollFirst().release();
+                firstSequence++;
+                evicted++;
+            }
+            frame.retain();
+            frames.addLast(frame);
+            if (transport != null) {
+                transport.sendSequenced(frame);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isRecent(SharedFrame frame) {
+        Iterator<SharedFrame> newest = frames.descendingIterator();
+        for (int i = 0; i < RECENT_CHECK && newest.hasNext(); i++) {
+            if (newest.next() == frame) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Gives the session to a connection whose login just succeeded. The client gets a SEQUENCE frame and
+    // then every message after lastReceived still kept. Returns false if the session has expired
+    public boolean attach(ClientHandler handler, ClientTransport transport, long lastReceived) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            acknowledge(lastReceived);
+            owner = handler;
+            this.transport = transport;
+            started = true;
+            SharedFrame marker = new SharedFrame(Messages.sequence(id, firstSequence));
+            transport.sendFrame(marker, false);
+            marker.release();
+            for (SharedFrame frame : frames) {
+                transport.sendSequenced(frame);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Starts a new session for a connection whose login just succeeded. Broadcasts up to lastBroadcast were
+    // either made before the client arrived or are among history, the recent chat already encoded, which
+    // is sent ahead of the SEQUENCE frame. Either way they may still be on their way here and are skipped
+    public void open(ClientHandler handler, ClientTransport transport, ByteBuffer history, long lastBroadcast) {
+        lock.lock();
+        try {
+            broadcastsBefore = lastBroadcast;
+            if (history != null) {
+                transport.sendEncoded(history);
+            }
+            attach(handler, transport, 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The client has everything up to sequence, only from the connection that has the session
+    public void acknowledge(ClientHandler from, long sequence) {
+        lock.lock();
+        try {
+            if (owner == from) {
+                acknowledge(sequence);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void acknowledge(long sequence) {
+        while (!frames.isEmpty() && firstSequence <= sequence) {
+            frames.pollFirst().release();
+            firstSequence++;
+        }
+    }
+
+    // The connection that had the session has gone. Returns how many messages are kept for a resume,
+    // or -1 if another connection had already taken the session over
+    public int detach(ClientHandler handler) {
+        lock.lock();
+        try {
+            if (owner != handler || closed) {
+                return -1;
+            }
+            owner = null;
+            transport = null;
+            detachedAt = System.currentTimeMillis();
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Frees the session if nobody has had it for maxAgeMillis. Returns true if it was closed
+    public boolean closeIfIdle(long now, long maxAgeMillis) {
+        lock.lock();
+        try {
+            if (owner != null || now - detachedAt < maxAgeMillis) {
+                return false;
+            }
+            closed = true;
+            for (SharedFrame frame : frames) {
+                frame.release();
+            }
+            frames.clear();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isAttached() {
+        lock.lock();
+        try {
+            return owner != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getEvictedCount() {
+        lock.lock();
+        try {
+            return evicted;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
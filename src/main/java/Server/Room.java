@@ -0,0 +1,97 @@
+package Server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A named group of clients. Chat, notices and files from a member only go to the other members, so relaying
+// a message costs as much as the room has members rather than as much as the server has clients. Every
+// client starts in the lobby. Members are kept in a copy-on-write array like the client registry, so
+// relaying never takes a lock
+public class Room {
+    public static final String LOBBY = "lobby";
+    public static final int MAX_NAME_LENGTH = 32;
+    private static final ClientHandler[] EMPTY = new ClientHandler[0];
+
+    private final String name;
+    private volatile ClientHandler[] members = EMPTY; // Never modified once published
+    private final Set<Outbox> detachedSessions = ConcurrentHashMap.newKeySet(); // Members whose client is away
+    private final ReentrantLock writeLock = new ReentrantLock(); // Only joins and leaves take it
+
+    public Room(String name) {
+        this.name = name;
+    }
+
+    // Letters, digits, '-' and '_', at most MAX_NAME_LENGTH of them
+    public static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isLobby() {
+        return LOBBY.equals(name);
+    }
+
+    void add(ClientHandler client) {
+        writeLock.lock();
+        try {
+            ClientHandler[] current = members;
+            for (ClientHandler member : current) {
+                if (member == client) {
+                    return;
+                }
+            }
+            ClientHandler[] next = new ClientHandler[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = client;
+            members = next;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void remove(ClientHandler client) {
+        writeLock.lock();
+        try {
+            ClientHandler[] current = members;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == client) {
+                    ClientHandler[] next = new ClientHandler[current.length - 1];
+                    System.arraycopy(current, 0, next, 0, i);
+                    System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                    members = next;
+                    return;
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Current members, safe to iterate without locking because the array is never changed
+    ClientHandler[] snapshot() {
+        return members;
+    }
+
+    // Sessions of members that lost their connection, they keep collecting the room's chat
+    Set<Outbox> getDetachedSessions() {
+        return detachedSessions;
+    }
+
+    // Nobody is in it or coming back to it, so it can be forgotten
+    boolean isEmpty() {
+        return members.length == 0 && detachedSessions.isEmpty();
+    }
+}
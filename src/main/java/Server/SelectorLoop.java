@@ -0,0 +1,153 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// One event-loop thread that owns a selector and every connection registered on it
+public class SelectorLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long SHUTDOWN_GRACE_MS = 2000;
+
+    private final NioServer nioServer;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // Work handed over by other threads
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE); // Shared by all connections on this loop
+    private final Map<NioConnection, Long> lingering = new HashMap<>(); // Connections holding back writes, and until when
+    private Thread thread;
+    private volatile boolean running = true;
+    private volatile long stopDeadline;
+
+    public SelectorLoop(NioServer nioServer) throws IOException {
+        this.nioServer = nioServer;
+        this.selector = Selector.open();
+    }
+
+    public void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    // Runs a task on this loop's thread
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // Hands a freshly accepted channel over to this loop
+    public void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                NioConnection connection = new NioConnection(channel, this, nioServer, nioServer.createOutboundQueue());
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.setKey(key);
+                nioServer.admit(connection);
+            } catch (IOException e) {
+                System.out.println("Error registering connection: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    // Ignore
+                }
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                // Tasks queued from this thread don't wake the selector, so don't block if any are waiting
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                } else if (!lingering.isEmpty()) {
+                    selector.select(1); // Lingers are at most a millisecond
+                } else {
+                    selector.select(stopDeadline == 0 ? 0 : 100);
+                }
+                runTasks();
+                endLingers();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                }
+
+                // Once shutdown starts, wait for pending goodbyes to flush before giving up
+                if (stopDeadline != 0 && (selector.keys().isEmpty() || System.currentTimeMillis() > stopDeadline)) {
+                    running = false;
+                }
+            } catch (IOException e) {
+                System.out.println("Event loop error: " + e.getMessage());
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            ((NioConnection) key.attachment()).closeNow();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.out.println("Error closing selector: " + e.getMessage());
+        }
+    }
+
+    // Makes the connection try to write again after the given nanoseconds, called on the loop thread
+    void wakeAfter(NioConnection connection, long nanos) {
+        lingering.put(connection, System.nanoTime() + nanos);
+    }
+
+    private void endLingers() {
+        if (lingering.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        Iterator<Map.Entry<NioConnection, Long>> entries = lingering.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<NioConnection, Long> entry = entries.next();
+            if (now - entry.getValue() >= 0) {
+                entries.remove();
+                entry.getKey().lingerExpired();
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.out.println("Event loop task failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Lets connections drain their write queues, then stops the loop
+    public void shutdown() {
+        stopDeadline = System.currentTimeMillis() + SHUTDOWN_GRACE_MS;
+        selector.wakeup();
+    }
+}
@@ -2,46 +2,148 @@ package Server;
 
 import java.io.*;
 import java.net.*;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import Encryption.EncryptionTool;
+import Protocol.Frame;
+import Protocol.Messages;
+import Protocol.Protocol;
 
 public class Server extends Thread {
-    private List<ClientHandler> clients = new ArrayList<ClientHandler>(); // Tracks all connected clients
+    // Server modes
+    public static final String MODE_BLOCKING = "blocking"; // One thread per client
+    public static final String MODE_VIRTUAL = "virtual"; // One virtual thread per client
+    public static final String MODE_NIO = "nio"; // Selector event loops
+
+    private static final String CHAT_LOG_DIR = "chatlog";
+
+    private ClientRegistry clients = new ClientRegistry(); // Tracks all connected clients
     private String host;
     private int port;
+    private String mode;
+    private ServerConfig config;
     private ServerSocket serverSocket;
-    private ConnectionSemaphore connectionSemaphore;
+    private NioServer nioServer;
+    private AdmissionController admission; // Connection limit and waiting queue
+    private AuthService authService; // Logins and registrations, off the connection threads
+    private final SessionTokens sessionTokens = new SessionTokens(); // Lets a dropped client log back in without its password
+    private final ConcurrentHashMap<Long, Outbox> sessions = new ConcurrentHashMap<>(); // Acknowledging clients' sessions by ID
+    private final Set<Outbox> detachedSessions = ConcurrentHashMap.newKeySet(); // Sessions whose client is away
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>(); // By name, a room is dropped once nobody is in it
+    private final Room lobby = new Room(Room.LOBBY); // Where every client starts, never dropped
+    private final ReentrantLock roomLock = new ReentrantLock(); // Orders joins and leaves against rooms being dropped
+    private final ScheduledExecutorService sessionTimer; // Hands out fresh tokens, frees sessions nobody resumed and old chat log segments
+    private final FileSpool spool = new FileSpool(); // Files being relayed, and recent ones for clients that log in later
+    private final HistoryRing history; // Recent chat for clients that have just logged in, null if turned off
+    private final ChatLog chatLog; // Chat kept on disk across restarts, null if turned off
+    private final ReentrantLock historyLock = new ReentrantLock(); // Orders broadcasts of chat against sessions starting
+    private long lastBroadcastId; // Guarded by historyLock
+    private ThreadFactory threadFactory; // Creates connection threads for blocking and virtual modes
     private volatile boolean running = true;
 
     public Server(String host, int port) {
+        this(host, port, new ServerConfig());
+    }
+
+    public Server(String host, int port, ServerConfig config) {
         this.host = host;
         this.port = port;
-        this.connectionSemaphore = new ConnectionSemaphore();
+        this.config = config;
+        this.mode = config.getMode();
+        this.admission = new AdmissionController(config.getMaxConnections(), config.getMaxQueueLength(),
+                config.getWaitTimeoutSeconds(), config.getQueueUpdateSeconds());
+        this.authService = new AuthService(config.getAuthThreads(), config.getAuthQueueLength(),
+                config.getAuthAttemptsPerMinute());
+        rooms.put(Room.LOBBY, lobby);
+        this.history = config.getHistoryMessages() > 0 && config.getHistoryBytes() > 0
+                ? new HistoryRing(config.getHistoryMessages(), config.getHistoryBytes()) : null;
+        this.chatLog = openChatLog(config);
+        if (history != null && chatLog != null) {
+            // Clients that log in after a restart see what was said in the lobby before it
+            for (ChatLog.Entry entry : chatLog.readLast(Room.LOBBY, config.getHistoryMessages())) {
+                SharedFrame shared = new SharedFrame(entry.frame());
+                history.append(shared);
+                shared.release();
+            }
+        }
+        this.threadFactory = MODE_VIRTUAL.equals(mode) ? createVirtualThreadFactory() : Thread::new;
+        this.sessionTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "sessions");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long refreshMillis = SessionTokens.LIFETIME_MILLIS / 2;
+        sessionTimer.scheduleAtFixedRate(this::refreshSessions, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+        if (chatLog != null) {
+            sessionTimer.scheduleAtFixedRate(chatLog::enforceRetention, 1, 1, TimeUnit.MINUTES);
+        }
+    }
+
+    // Virtual threads are looked up when asked for, so the other modes still build and run on Java 17.
+    // Returns null if this Java doesn't have them
+    static ThreadFactory createVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // Virtual mode needs Java 21
+    public static boolean supportsVirtualThreads() {
+        return createVirtualThreadFactory() != null;
+    }
+
+    private static ChatLog openChatLog(ServerConfig config) {
+        if (config.getChatLogBytes() <= 0) {
+            return null;
+        }
+        try {
+            return new ChatLog(CHAT_LOG_DIR, config.getChatLogSegmentBytes(), config.getChatLogBytes(),
+                    TimeUnit.HOURS.toMillis(config.getChatLogHours()));
+        } catch (IOException e) {
+            System.out.println("Error opening chat log, chat won't be kept: " + e.getMessage());
+            return null;
+        }
     }
 
     @Override
     public void run(){
+        if (MODE_NIO.equals(mode)) {
+            runNio();
+        } else {
+            runBlocking();
+        }
+    }
+
+    // Accepts connections with a blocking server socket and a thread per client, platform or virtual
+    private void runBlocking() {
         try {
             serverSocket = new ServerSocket();
             serverSocket.setReuseAddress(true);
             serverSocket.bind(new InetSocketAddress(host, port)); // Binds socket to specified host and port
 
             System.out.println("Server started at " + serverSocket.getLocalSocketAddress());
-            System.out.println("Connection limit: 3 users at a time");
-            System.out.println("Waiting for client connections...");
-            
-            // Start the exit handler
-            ExitHandler exitHandler = new ExitHandler(this);
-            exitHandler.start();
+            printStartupInfo();
 
             while (running && !serverSocket.isClosed()){
                 Socket clientSocket = serverSocket.accept(); // Waits for clients to connect
                 System.out.println("New connection attempt from " + clientSocket.getRemoteSocketAddress() + " to " + clientSocket.getLocalSocketAddress());
 
-                // Create a handler thread for this connection attempt
-                new Thread(() -> handleConnectionAttempt(clientSocket)).start();
+                // Nothing here blocks, a thread is only started once the client is admitted
+                handleConnectionAttempt(clientSocket);
             }
         } catch(IOException e) {
             if (!serverSocket.isClosed() && running) {
@@ -50,52 +152,108 @@ public class Server extends Thread {
         }
     }
 
-    // Handles connection attempt in a separate thread
+    // Accepts connections on selector event loops, no thread per client
+    private void runNio() {
+        try {
+            nioServer = new NioServer(this, host, port, config.getEventLoops());
+            if (!running) {
+                return;
+            }
+            nioServer.run();
+        } catch (IOException e) {
+            if (running) {
+                System.out.println("Server error: " + e.getMessage());
+            }
+        }
+    }
+
+    // Called from whichever mode once the server socket is bound
+    void printStartupInfo() {
+        System.out.println("Connection limit: " + admission.getCapacity() + " users at a time, up to " +
+                           config.getMaxQueueLength() + " more can wait in the queue");
+        System.out.println("Waiting for client connections...");
+
+        // Start the exit handler
+        ExitHandler exitHandler = new ExitHandler(this);
+        startThread(exitHandler);
+    }
+
+    // Runs a task on a new thread of the kind this server's mode uses
+    void startThread(Runnable task) {
+        threadFactory.newThread(task).start();
+    }
+
+    // Asks for a slot without holding a thread, a queued client is just an entry in the admission queue
     private void handleConnectionAttempt(Socket clientSocket) {
         try {
             SocketAddress clientAddress = clientSocket.getRemoteSocketAddress();
             PrintWriter tempWriter = new PrintWriter(clientSocket.getOutputStream(), true);
-            
-            // Check current server status
-            int activeConnections = 3 - connectionSemaphore.getAvailableConnections();
-            boolean wasWaiting = false;
-            
-            if (activeConnections >= 3) {
-                wasWaiting = true;
-                System.out.println("Server full - Client " + clientAddress + " will wait in queue");
-                tempWriter.println("SERVER_WAITING:Server is currently full. You are in a waiting queue. Please wait...");
-            }
-            
-            // Try to connect, will fail if the server is full
-            try {
-                connectionSemaphore.acquireConnection();
-                
-                System.out.println("Connection granted to " + clientAddress + 
-                                  " - " + (3 - connectionSemaphore.getAvailableConnections()) + "/3 connections active");
-                
-                if (wasWaiting) {
-                    tempWriter.println("SERVER_CONNECTED:You've been granted access to the server.");
-                    
-                    Thread.sleep(100);
-                    
-                    // Send encryption key
-                    tempWriter.println(EncryptionTool.getKeyAsString());
-                    System.out.println("Sent encryption key to previously waiting client");
-                } else {
-                    // Pass
+
+            admission.requestAdmission(new AdmissionController.Waiter() {
+                private boolean queued;
+
+                @Override
+                protected void admitted(boolean wasWaiting) {
+                    System.out.println("Connection granted to " + clientAddress + " - " + getConnectionSummary());
+
+                    // Create and start client handler, say if client is waiting in queue or not
+                    ClientHandler clientHandler = new ClientHandler(clientSocket, Server.this, wasWaiting);
+                    addClient(clientHandler);
+                    startThread(() -> {
+                        if (wasWaiting) {
+                            tempWriter.println("SERVER_CONNECTED:You've been granted access to the server.");
+
+                            try {
+                                Thread.sleep(100);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+
+                            // Send encryption key
+                            tempWriter.println(EncryptionTool.getKeyAsString());
+                            if (tempWriter.checkError()) {
+                                // Gave up just before its turn, the slot goes to the next one in the queue
+                                System.out.println("Previously waiting client " + clientAddress + " has gone away");
+                                clientHandler.onDisconnected();
+                                return;
+                            }
+                            System.out.println("Sent encryption key to previously waiting client");
+                        }
+                        clientHandler.run();
+                    });
                 }
-                
-                // Create and start client handler, say if client is waiting in queue or not
-                ClientHandler clientHandler = new ClientHandler(clientSocket, this, wasWaiting);
-                synchronized (clients) {
-                    clients.add(clientHandler);
+
+                @Override
+                protected void status(String message) {
+                    if (!queued) {
+                        queued = true;
+                        System.out.println("Server full - Client " + clientAddress + " will wait in queue");
+                    }
+                    tempWriter.println(message);
+                    // Nothing reads a queued client's socket, so a client that gave up is only noticed
+                    // when a queue update can't be written. The first write after it closed usually
+                    // still succeeds, the next one fails
+                    if (tempWriter.checkError() && admission.cancel(this)) {
+                        System.out.println("Client " + clientAddress + " left the queue");
+                        try {
+                            clientSocket.close();
+                        } catch (IOException e) {
+                            // Ignore
+                        }
+                    }
                 }
-                clientHandler.start();
-                
-            } catch (InterruptedException e) {
-                System.out.println("Connection attempt interrupted for " + clientAddress);
-                clientSocket.close();
-            }
+
+                @Override
+                protected void rejected(String message) {
+                    System.out.println("Turning away " + clientAddress + ": " + message);
+                    tempWriter.println(message);
+                    try {
+                        clientSocket.close();
+                    } catch (IOException e) {
+                        // Ignore
+                    }
+                }
+            });
         } catch (IOException e) {
             System.out.println("Error handling connection attempt: " + e.getMessage());
             try {
@@ -106,38 +264,334 @@ public class Server extends Thread {
         }
     }
 
-    // Sends message to all connected clients
-    public void broadcast(String message, SocketAddress source) {
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                if (!client.getSocketAddress().equals(source)) {
-                    client.send(message);
-                }
+    // Adds an admitted client so it receives the lobby's broadcasts
+    void addClient(ClientHandler clientHandler) {
+        clients.add(clientHandler);
+        roomLock.lock();
+        try {
+            lobby.add(clientHandler);
+            clientHandler.setRoom(lobby);
+        } finally {
+            roomLock.unlock();
+        }
+    }
+
+    // Moves a client from its room to the one called name, which is created if nobody is in it yet.
+    // A client that just came into a room is sent the files shared there shortly before
+    Room joinRoom(ClientHandler client, String name) {
+        Room joined;
+        roomLock.lock();
+        try {
+            joined = rooms.computeIfAbsent(name, Room::new);
+            Room left = client.getRoom();
+            if (left == joined) {
+                return joined;
+            }
+            if (left != null) {
+                left.remove(client);
+                dropIfEmpty(left);
+            }
+            joined.add(client);
+            client.setRoom(joined);
+        } finally {
+            roomLock.unlock();
+        }
+        if (client.isAuthenticated()) {
+            spool.clientJoined(client);
+        }
+        return joined;
+    }
+
+    // Called with roomLock held
+    private void dropIfEmpty(Room room) {
+        if (room != lobby && room.isEmpty()) {
+            rooms.remove(room.getName(), room);
+        }
+    }
+
+    // Rooms with the members of each, for the console
+    String describeRooms() {
+        StringBuilder description = new StringBuilder("Rooms:");
+        for (Room room : rooms.values()) {
+            description.append(' ').append(room.getName()).append(" (").append(room.snapshot().length)
+                    .append(room.getDetachedSessions().isEmpty() ? "" : " + " + room.getDetachedSessions().size() + " away")
+                    .append(')');
+        }
+        return description.toString();
+    }
+
+    // Makes a logged in client findable by username, and sends it files shared shortly before it arrived
+    void clientAuthenticated(ClientHandler clientHandler) {
+        clients.indexUsername(clientHandler);
+        spool.clientJoined(clientHandler);
+    }
+
+    // Every logged in client gets a new token halfway through the life of its last one, so a client that
+    // has been idle for a while can still resume. A session whose client has been away longer than a token
+    // lasts can't be resumed any more, so its messages are freed
+    private void refreshSessions() {
+        for (ClientHandler client : clients.snapshot()) {
+            client.sendSessionToken();
+        }
+        long now = System.currentTimeMillis();
+        for (Outbox session : detachedSessions) {
+            if (session.closeIfIdle(now, SessionTokens.LIFETIME_MILLIS)) {
+                sessions.remove(session.getId());
+                detachedSessions.remove(session);
+                leaveRoom(session);
+            } else if (session.isAttached()) {
+                detachedSessions.remove(session); // Resumed while it was being detached
             }
         }
     }
-    
+
+    // A new session for a client that logged in with its password
+    Outbox openSession() {
+        Outbox session = new Outbox(config.getOutboxMessages());
+        sessions.put(session.getId(), session);
+        return session;
+    }
+
+    // Hands a new session to the connection that logged in, with the most recent chat first if
+    // replayHistory is set. Holding the history lock while it starts means every broadcast is either
+    // already counted in lastBroadcastId, and skipped by the session, or reaches it after it has started
+    void startSession(Outbox session, ClientHandler handler, ClientTransport transport, boolean replayHistory) {
+        historyLock.lock();
+        try {
+            ByteBuffer recent = null;
+            if (replayHistory && history != null && config.getHistoryReplay() > 0) {
+                recent = history.copyTail(config.getHistoryReplay(), BufferPool.LARGEST_SIZE);
+            }
+            session.open(handler, transport, recent, lastBroadcastId);
+        } finally {
+            historyLock.unlock();
+        }
+    }
+
+    // Session of a resume token, or null if it has expired
+    Outbox findSession(long sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    // The session's client is back. Its new connection has already joined the session's room
+    void sessionAttached(Outbox session) {
+        detachedSessions.remove(session);
+        leaveRoom(session);
+    }
+
+    // The session keeps collecting its room's chat while its client is away
+    void sessionDetached(Outbox session) {
+        detachedSessions.add(session);
+        roomLock.lock();
+        try {
+            rooms.computeIfAbsent(session.getRoom(), Room::new).getDetachedSessions().add(session);
+        } finally {
+            roomLock.unlock();
+        }
+    }
+
+    private void leaveRoom(Outbox session) {
+        roomLock.lock();
+        try {
+            Room room = rooms.get(session.getRoom());
+            if (room != null && room.getDetachedSessions().remove(session)) {
+                dropIfEmpty(room);
+            }
+        } finally {
+            roomLock.unlock();
+        }
+    }
+
+    // Removes a client from its room once its connection has gone
+    private void leaveRoom(ClientHandler client) {
+        roomLock.lock();
+        try {
+            Room room = client.getRoom();
+            if (room != null) {
+                room.remove(client);
+                dropIfEmpty(room);
+            }
+        } finally {
+            roomLock.unlock();
+        }
+    }
+
+    // Sends message to everyone in a room
+    public void broadcast(Room room, Frame message, SocketAddress source) {
+        broadcast(room, message, source, false);
+    }
+
+    // Queues message for the members of a room, each client's writer sends it at its own pace.
+    // Every queue gets the same shared frame, so it is encoded once however many members there are
+    public void broadcast(Room room, Frame message, SocketAddress source, boolean fileData) {
+        SharedFrame shared = new SharedFrame(message);
+        if (Protocol.isSequenced(message.getType())) {
+            recordBroadcast(shared, room);
+        }
+        // Iterates an immutable snapshot, so joins and leaves never block a broadcast
+        for (ClientHandler client : room.snapshot()) {
+            if (!client.getSocketAddress().equals(source)) {
+                client.send(shared, fileData);
+            }
+        }
+        // Members that lost their connection get it when they resume
+        if (Protocol.isSequenced(message.getType())) {
+            for (Outbox session : room.getDetachedSessions()) {
+                session.send(shared);
+            }
+        }
+        shared.release();
+    }
+
+    // Numbers a chat message or notice and writes it to the chat log under its room. Only the lobby's are
+    // copied into the history, which a client that has just logged in is shown before it could have joined
+    // any other room
+    private void recordBroadcast(SharedFrame shared, Room room) {
+        historyLock.lock();
+        try {
+            shared.setBroadcastId(++lastBroadcastId);
+            if (history != null && room.isLobby()) {
+                history.append(shared);
+            }
+            if (chatLog != null) {
+                chatLog.append(shared, room.getName());
+            }
+        } finally {
+            historyLock.unlock();
+        }
+    }
+
+    // File transfers go through the spool, so each receiver is served at its own pace.
+    // Anything the spool won't take is broadcast as it arrives
+    public void relayFileMessage(Frame message, ClientHandler sender) {
+        boolean spooled;
+        switch (message.getType()) {
+            case Protocol.FILE_START:
+                spooled = spool.start(message, sender, sender.getRoom());
+                break;
+            case Protocol.FILE_CHUNK:
+                spooled = spool.chunk(message, sender);
+                break;
+            case Protocol.FILE_END:
+                spooled = spool.end(message, sender);
+                break;
+            case Protocol.FILE_ERROR:
+                spooled = spool.error(message, sender);
+                break;
+            default:
+                spooled = false;
+                break;
+        }
+        if (!spooled) {
+            broadcast(sender.getRoom(), message, sender.getSocketAddress(), true);
+            if (message.getType() == Protocol.FILE_START && sender.usesBinaryProtocol()) {
+                sender.send(Messages.fileResume(Messages.readTransferId(message), new BitSet())); // Send everything
+            }
+        }
+    }
+
+    // A receiver listed the chunks of a spooled file it already has
+    public void resumeReply(long transferId, ClientHandler client, BitSet received) {
+        spool.resumeReply(transferId, client, received);
+    }
+
+    // Each connection gets its own bounded queue, sized and handled as configured
+    OutboundQueue createOutboundQueue() {
+        return new OutboundQueue(config.getOutboundQueueBytes(), config.getOverflowPolicy(),
+                config.getWriteLingerMicros() * 1000L);
+    }
+
     // Removes a client handler from the list when it disconnects
     public void removeClient(ClientHandler client) {
-        synchronized (clients) {
-            clients.remove(client);
+        if (!clients.remove(client)) {
+            return; // Already removed
         }
-        // Release the semaphore permit when a client disconnects
-        connectionSemaphore.releaseConnection();
-        System.out.println("Client removed. Active connections: " + (3 - connectionSemaphore.getAvailableConnections()) + 
-                          "/3, Waiting clients: " + connectionSemaphore.getQueueLength());
+        leaveRoom(client);
+        spool.clientLeft(client);
+        // Free the slot when a client disconnects, the next queued client gets it
+        admission.release();
+        System.out.println("Client removed. Active connections: " + admission.getActiveConnections() +
+                          "/" + admission.getCapacity() + ", Waiting clients: " + admission.getWaitingCount());
     }
 
-    // Getter method to return list of all connected clients
+    // Getter method to return list of all connected clients, a read-only view of the current snapshot
     public List<ClientHandler> getClients() {
-        synchronized (clients) {
-            return new ArrayList<>(clients);
+        return Collections.unmodifiableList(Arrays.asList(clients.snapshot()));
+    }
+
+    public ClientHandler getClient(SocketAddress address) {
+        return clients.getByAddress(address);
+    }
+
+    // All connections logged in under a username
+    public Set<ClientHandler> getClientsByUsername(String username) {
+        return clients.getByUsername(username);
+    }
+
+    AdmissionController getAdmission() {
+        return admission;
+    }
+
+    AuthService getAuthService() {
+        return authService;
+    }
+
+    SessionTokens getSessionTokens() {
+        return sessionTokens;
+    }
+
+    // Chat from the log in one room, or every room if room is null, the last count messages or those
+    // since a time. Null if there is no log
+    List<ChatLog.Entry> readChatLog(String room, int count) {
+        return chatLog != null ? chatLog.readLast(room, count) : null;
+    }
+
+    List<ChatLog.Entry> readChatLogSince(String room, long time, int max) {
+        return chatLog != null ? chatLog.readSince(room, time, max) : null;
+    }
+
+    String describeChatLog() {
+        return chatLog != null ? chatLog.describe() : "Chat log is turned off";
+    }
+
+    String describeHistory() {
+        if (history == null) {
+            return "Chat history is turned off";
         }
+        historyLock.lock();
+        try {
+            return "Chat history: " + history.size() + " messages, " + history.getUsedBytes() / 1024 + "KB of "
+                    + config.getHistoryBytes() / 1024 + "KB, the last " + config.getHistoryReplay() + " sent to each login";
+        } finally {
+            historyLock.unlock();
+        }
+    }
+
+    String getConnectionSummary() {
+        return admission.getActiveConnections() + "/" + admission.getCapacity() + " connections active";
+    }
+
+    // Changes the connection limit while running
+    public void setCapacity(int capacity) {
+        admission.setCapacity(capacity);
+        System.out.println("Connection limit changed: " + getConnectionSummary() + ", Waiting clients: " + admission.getWaitingCount());
     }
 
     // Shuts down server
     public void shutdown() {
         running = false;
+        admission.shutdown();
+        authService.shutdown();
+        sessionTimer.shutdownNow();
+        if (chatLog != null) {
+            chatLog.close();
+        }
+        System.out.println(authService.describe());
+        if (nioServer != null) {
+            nioServer.shutdown();
+            System.out.println("Server shutdown complete.");
+            return;
+        }
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
@@ -147,4 +601,4 @@ public class Server extends Thread {
             System.out.println("Error closing server socket: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,176 @@
+package Server;
+
+// Startup settings for the server
+public class ServerConfig {
+    private String mode = Server.MODE_BLOCKING;
+    private int eventLoops = 1; // Only used in NIO mode
+    private int maxConnections = 3;
+    private int maxQueueLength = 50; // Clients beyond this are turned away straight away
+    private int waitTimeoutSeconds = 600; // 0 waits forever
+    private int queueUpdateSeconds = 10; // How often queued clients hear their position
+    private long outboundQueueBytes = 4 * 1024 * 1024; // Per client
+    private String overflowPolicy = OutboundQueue.DISCONNECT;
+    private int writeLingerMicros = 1000; // Longest a few small messages wait to share a write with the next ones
+    private int authThreads = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    private int authQueueLength = 256; // Logins waiting for a worker, more are told to retry
+    private int authAttemptsPerMinute = 60; // Per address once its burst is used up, 0 for no limit
+    private int outboxMessages = 256; // Unacknowledged messages kept per session for replay after a reconnect
+    private int historyMessages = 1000; // Recent chat kept for clients that log in later, 0 keeps none
+    private int historyBytes = 1024 * 1024; // Off the heap, allocated once at startup
+    private int historyReplay = 50; // Of those, how many a client is sent when it logs in
+    private long chatLogBytes = 256L * 1024 * 1024; // Disk kept for the chat log, 0 keeps no log
+    private int chatLogSegmentBytes = 16 * 1024 * 1024;
+    private int chatLogHours = 7 * 24; // Segments with nothing newer are deleted
+
+    public String getMode() {
+        return mode;
+    }
+
+    public void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public void setEventLoops(int eventLoops) {
+        this.eventLoops = eventLoops;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+
+    public void setMaxQueueLength(int maxQueueLength) {
+        this.maxQueueLength = maxQueueLength;
+    }
+
+    public int getWaitTimeoutSeconds() {
+        return waitTimeoutSeconds;
+    }
+
+    public void setWaitTimeoutSeconds(int waitTimeoutSeconds) {
+        this.waitTimeoutSeconds = waitTimeoutSeconds;
+    }
+
+    public int getQueueUpdateSeconds() {
+        return queueUpdateSeconds;
+    }
+
+    public void setQueueUpdateSeconds(int queueUpdateSeconds) {
+        this.queueUpdateSeconds = queueUpdateSeconds;
+    }
+
+    public long getOutboundQueueBytes() {
+        return outboundQueueBytes;
+    }
+
+    public void setOutboundQueueBytes(long outboundQueueBytes) {
+        this.outboundQueueBytes = outboundQueueBytes;
+    }
+
+    public String getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(String overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public int getWriteLingerMicros() {
+        return writeLingerMicros;
+    }
+
+    public void setWriteLingerMicros(int writeLingerMicros) {
+        this.writeLingerMicros = writeLingerMicros;
+    }
+
+    public int getAuthThreads() {
+        return authThreads;
+    }
+
+    public void setAuthThreads(int authThreads) {
+        this.authThreads = authThreads;
+    }
+
+    public int getAuthQueueLength() {
+        return authQueueLength;
+    }
+
+    public void setAuthQueueLength(int authQueueLength) {
+        this.authQueueLength = authQueueLength;
+    }
+
+    public int getAuthAttemptsPerMinute() {
+        return authAttemptsPerMinute;
+    }
+
+    public void setAuthAttemptsPerMinute(int authAttemptsPerMinute) {
+        this.authAttemptsPerMinute = authAttemptsPerMinute;
+    }
+
+    public int getOutboxMessages() {
+        return outboxMessages;
+    }
+
+    public void setOutboxMessages(int outboxMessages) {
+        this.outboxMessages = outboxMessages;
+    }
+
+    public int getHistoryMessages() {
+        return historyMessages;
+    }
+
+    public void setHistoryMessages(int historyMessages) {
+        this.historyMessages = historyMessages;
+    }
+
+    public int getHistoryBytes() {
+        return historyBytes;
+    }
+
+    public void setHistoryBytes(int historyBytes) {
+        this.historyBytes = historyBytes;
+    }
+
+    public int getHistoryReplay() {
+        return historyReplay;
+    }
+
+    public void setHistoryReplay(int historyReplay) {
+        this.historyReplay = historyReplay;
+    }
+
+    public long getChatLogBytes() {
+        return chatLogBytes;
+    }
+
+    public void setChatLogBytes(long chatLogBytes) {
+        this.chatLogBytes = chatLogBytes;
+    }
+
+    public int getChatLogSegmentBytes() {
+        return chatLogSegmentBytes;
+    }
+
+    public void setChatLogSegmentBytes(int chatLogSegmentBytes) {
+        this.chatLogSegmentBytes = chatLogSegmentBytes;
+    }
+
+    public int getChatLogHours() {
+        return chatLogHours;
+    }
+
+    public void setChatLogHours(int chatLogHours) {
+        this.chatLogHours = chatLogHours;
+    }
+}
@@ -0,0 +1,95 @@
+package Server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+// Short-lived tokens a client can log back in with after its connection drops, without its password.
+// A token is the username, the session it belongs to and an expiry time, signed with HMAC-SHA256, so
+// checking one needs no lookup. The signing secret is kept in a file, so tokens still work after the server restarts:
+//   version, 8-byte expiry (epoch millis), 8-byte session ID, username, 32-byte HMAC of everything before it
+public class SessionTokens {
+    public static final long LIFETIME_MILLIS = 10 * 60 * 1000; // Connected clients get a new one before this runs out
+    private static final Path SECRET_FILE = Paths.get("session_secret.dat");
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final byte VERSION = 2;
+    private static final int SECRET_SIZE = 32;
+    private static final int MAC_SIZE = 32;
+    private static final int PREFIX_SIZE = 1 + 8 + 8;
+
+    private final SecretKeySpec secret;
+
+    // What a valid token says. sessionId is 0 for clients whose messages aren't kept for replay
+    public record Claim(String username, long sessionId) {
+    }
+
+    public SessionTokens() {
+        this.secret = new SecretKeySpec(loadSecret(), ALGORITHM);
+    }
+
+    private static byte[] loadSecret() {
+        try {
+            byte[] stored = Files.readAllBytes(SECRET_FILE);
+            if (stored.length == SECRET_SIZE) {
+                return stored;
+            }
+            System.out.println("Session secret file is damaged, creating a new one");
+        } catch (IOException e) {
+            // First start, created below
+        }
+        byte[] fresh = new byte[SECRET_SIZE];
+        new SecureRandom().nextBytes(fresh);
+        try {
+            Files.write(SECRET_FILE, fresh);
+        } catch (IOException e) {
+            System.out.println("Error saving session secret, tokens won't survive a restart: " + e.getMessage());
+        }
+        return fresh;
+    }
+
+    // A new token for username and its session, valid for LIFETIME_MILLIS
+    public byte[] issue(String username, long sessionId) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        byte[] token = new byte[PREFIX_SIZE + name.length + MAC_SIZE];
+        ByteBuffer.wrap(token).put(VERSION).putLong(System.currentTimeMillis() + LIFETIME_MILLIS).putLong(sessionId).put(name);
+        System.arraycopy(sign(token, token.length - MAC_SIZE), 0, token, token.length - MAC_SIZE, MAC_SIZE);
+        return token;
+    }
+
+    // Who a token was issued to, or null if it is expired, forged or not a token
+    public Claim verify(byte[] token) {
+        if (token.length < PREFIX_SIZE + MAC_SIZE || token[0] != VERSION) {
+            return null;
+        }
+        byte[] expected = sign(token, token.length - MAC_SIZE);
+        byte[] actual = Arrays.copyOfRange(token, token.length - MAC_SIZE, token.length);
+        if (!MessageDigest.isEqual(expected, actual)) { // Constant time, so the MAC can't be guessed byte by byte
+            return null;
+        }
+        if (ByteBuffer.wrap(token).getLong(1) < System.currentTimeMillis()) {
+            return null;
+        }
+        String username = new String(token, PREFIX_SIZE, token.length - PREFIX_SIZE - MAC_SIZE, StandardCharsets.UTF_8);
+        return new Claim(username, ByteBuffer.wrap(token).getLong(9));
+    }
+
+    private byte[] sign(byte[] data, int length) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(secret);
+            mac.update(data, 0, length);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package Server;
+
+import Protocol.Frame;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// A frame on its way to any number of clients. Its bytes are encoded once, into a pooled direct buffer that
+// every non-blocking writer sends from, and each queue holding the frame counts as a reference. The buffer
+// goes back to the pool when the last reference is released. A missed release only costs the pool a buffer
+public final class SharedFrame {
+    private final Frame frame;
+    private final AtomicInteger references = new AtomicInteger(1); // The creator's, released once it has handed the frame out
+    private final AtomicReference<ByteBuffer> encoded = new AtomicReference<>(); // Filled in when first needed
+    private long broadcastId; // Order among broadcast chat and notices, set before the frame is handed out, 0 for others
+
+    public SharedFrame(Frame frame) {
+        this.frame = frame;
+    }
+
+    public Frame getFrame() {
+        return frame;
+    }
+
+    long getBroadcastId() {
+        return broadcastId;
+    }
+
+    void setBroadcastId(long broadcastId) {
+        this.broadcastId = broadcastId;
+    }
+
+    // Taken by each queue the frame is added to
+    void retain() {
+        if (references.getAndIncrement() <= 0) {
+            throw new IllegalStateException("Frame used after it was released");
+        }
+    }
+
+    // Given back by the creator, and by a queue once the frame is written or dropped
+    public void release() {
+        int remaining = references.decrementAndGet();
+        if (remaining == 0) {
+            ByteBuffer buffer = encoded.getAndSet(null);
+            if (buffer != null) {
+                BufferPool.release(buffer);
+            }
+        } else if (remaining < 0) {
+            throw new IllegalStateException("Frame released too many times");
+        }
+    }
+
+    // The encoded frame with a position of its own, only valid while the caller holds a reference
+    ByteBuffer view() {
+        return encode().asReadOnlyBuffer();
+    }
+
+    // Copies length encoded bytes from offset into dest at index, moving neither buffer's position
+    void copyTo(int offset, ByteBuffer dest, int index, int length) {
+        dest.put(index, encode(), offset, length);
+    }
+
+    // The shared encoding, made on first use. Nobody moves its position
+    private ByteBuffer encode() {
+        ByteBuffer buffer = encoded.get();
+        if (buffer == null) {
+            ByteBuffer fresh = BufferPool.acquire(frame.getEncodedLength());
+            frame.writeTo(fresh);
+            fresh.flip();
+            // Two writers may encode it at the same time, the first one to finish is kept
+            if (encoded.compareAndSet(null, fresh)) {
+                buffer = fresh;
+            } else {
+                BufferPool.release(fresh);
+                buffer = encoded.get();
+            }
+        }
+        return buffer;
+    }
+}
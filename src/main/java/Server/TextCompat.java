@@ -0,0 +1,150 @@
+package Server;
+
+import Encryption.EncryptionTool;
+import FileTransfer.FileTransfer;
+import Protocol.Frame;
+import Protocol.Messages;
+import Protocol.Protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Converts between frames and the old Base64 line protocol, for clients that never sent a PROTOCOL hello.
+// Those clients Base64-encode chunk bodies inside the message as well, so the chunks are converted both ways.
+// Each text client has its own instance, which gives its file messages their transfer IDs
+public class TextCompat {
+    private static final String AUTH_LOGIN = "AUTH_LOGIN";
+    private static final String AUTH_REGISTER = "AUTH_REGISTER";
+    private static final String AUTH_SUCCESS = "AUTH_SUCCESS";
+    private static final String AUTH_FAILURE = "AUTH_FAILURE";
+    private static final int MAX_OPEN_FILES = 8; // Files started but not ended that are remembered
+
+    // Text file messages carry no transfer ID, so every FILE_START gets a new one. Chunks belong to the
+    // file started last and an end finds its file by name. Only used by the connection's reading thread
+    private final Map<String, Long> transferIds = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_OPEN_FILES; // Started and never ended
+        }
+    };
+    private long currentTransferId;
+
+    // Turns an encrypted line into a frame, returns null if the line isn't a message we understand
+    public Frame fromTextLine(String line) throws Exception {
+        byte[] message = new byte[line.length()];
+        int length = EncryptionTool.decryptFromString(line, message, 0);
+        Frame frame = fromPlainMessage(message, length);
+        if (frame != null) {
+            frame.setTextLine(line); // Relaying to other line clients costs nothing
+        }
+        return frame;
+    }
+
+    private Frame fromPlainMessage(byte[] message, int length) throws Exception {
+        // Chunks carry Base64 after "FILE_CHUNK:<index>:<total>:"
+        if (FileTransfer.isFileChunk(message, length)) {
+            int position = FileTransfer.FILE_CHUNK.length() + 1;
+            int chunkIndex = 0;
+            while (message[position] != ':') {
+                chunkIndex = chunkIndex * 10 + (message[position++] - '0');
+            }
+            position++;
+            int totalChunks = 0;
+            while (message[position] != ':') {
+                totalChunks = totalChunks * 10 + (message[position++] - '0');
+            }
+            position++;
+            ByteBuffer data = Base64.getDecoder().decode(ByteBuffer.wrap(message, position, length - position));
+            return Messages.fileChunk(currentTransferId, chunkIndex, totalChunks, data.array(), data.position(), data.remaining());
+        }
+
+        String text = new String(message, 0, length);
+        if (text.startsWith(AUTH_LOGIN + ":") || text.startsWith(AUTH_REGISTER + ":")) {
+            String[] parts = text.split(":", 3);
+            if (parts.length < 3) {
+                return null;
+            }
+            byte type = parts[0].equals(AUTH_LOGIN) ? Protocol.AUTH_LOGIN : Protocol.AUTH_REGISTER;
+            return Messages.authRequest(type, parts[1], parts[2]);
+        } else if (text.equals(AUTH_SUCCESS) || text.equals(AUTH_FAILURE)) {
+            return Messages.authResult(text.equals(AUTH_SUCCESS));
+        } else if (text.startsWith(FileTransfer.FILE_START + ":")) {
+            // Size is the last field, so a ':' in the file name doesn't matter
+            int sizeStart = text.lastIndexOf(':');
+            int nameStart = FileTransfer.FILE_START.length() + 1;
+            if (sizeStart < nameStart) {
+                return null;
+            }
+            String fileName = text.substring(nameStart, sizeStart);
+            long fileSize = Long.parseLong(text.substring(sizeStart + 1));
+            currentTransferId = Messages.newTransferId();
+            transferIds.put(fileName, currentTransferId);
+            return Messages.fileStart(currentTransferId, null, fileName, fileSize);
+        } else if (text.startsWith(FileTransfer.FILE_END + ":")) {
+            String fileName = text.substring(FileTransfer.FILE_END.length() + 1);
+            Long transferId = transferIds.remove(fileName);
+            return Messages.fileEnd(transferId != null ? transferId : currentTransferId, fileName);
+        } else if (text.startsWith(FileTransfer.FILE_ERROR + ":")) {
+            transferIds.values().remove(currentTransferId);
+            return Messages.fileError(currentTransferId, text.substring(FileTransfer.FILE_ERROR.length() + 1));
+        }
+        return Messages.chat(text);
+    }
+
+    // Encrypted line for a frame, converted once and then reused for every line client
+    public static String toTextLine(Frame frame) throws Exception {
+        String line = frame.getTextLine();
+        if (line != null) {
+            return line;
+        }
+
+        byte[] body = frame.open();
+        byte[] message;
+        switch (frame.getType()) {
+            case Protocol.FILE_CHUNK:
+                byte[] header = FileTransfer.createFileChunkHeader(Messages.readChunkIndex(frame), Messages.readTotalChunks(frame))
+                        .getBytes(StandardCharsets.ISO_8859_1);
+                byte[] data = Base64.getEncoder().encode(body);
+                message = new byte[header.length + data.length];
+                System.arraycopy(header, 0, message, 0, header.length);
+                System.arraycopy(data, 0, message, header.length, data.length);
+                break;
+            case Protocol.AUTH_LOGIN:
+            case Protocol.AUTH_REGISTER:
+                String authType = frame.getType() == Protocol.AUTH_LOGIN ? AUTH_LOGIN : AUTH_REGISTER;
+                message = (authType + ":" + Messages.readUsername(body, body.length) + ":"
+                        + Messages.readPassword(body, body.length)).getBytes();
+                break;
+            case Protocol.AUTH_SUCCESS:
+                message = AUTH_SUCCESS.getBytes();
+                break;
+            case Protocol.AUTH_FAILURE:
+            case Protocol.AUTH_RETRY: // The line protocol has no retry, the client just asks again
+                message = AUTH_FAILURE.getBytes();
+                break;
+            case Protocol.FILE_START:
+                message = FileTransfer.createFileStartMessage(Messages.readFileName(frame),
+                        Messages.readFileSize(frame)).getBytes();
+                break;
+            case Protocol.FILE_END:
+                message = FileTransfer.createFileEndMessage(Messages.readFileName(frame)).getBytes();
+                break;
+            case Protocol.NOTICE:
+                message = Messages.readNotice(frame).getBytes();
+                break;
+            case Protocol.FILE_ERROR:
+                message = FileTransfer.createFileErrorMessage(Messages.readText(body, body.length)).getBytes();
+                break;
+            default:
+                message = Messages.readText(body, body.length).getBytes();
+                break;
+        }
+
+        line = EncryptionTool.encryptToString(message, 0, message.length);
+        frame.setTextLine(line);
+        return line;
+    }
+}